@@ -0,0 +1,105 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.exporter.ExportFormat;
+import ch.finecloud.peopledb.exporter.ExportProgress;
+import ch.finecloud.peopledb.exporter.TableExporter;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports the whole PEOPLE table into a channel that discards the bytes, and reports the rows and bytes written
+ * per second next to the calls per second. The heap is kept small to show that it does not grow with the rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class ExportBenchmark {
+
+    @Param("1000000")
+    private int rows;
+
+    @Param({"CSV", "JSON_LINES"})
+    private ExportFormat format;
+
+    @Param({"false", "true"})
+    private boolean gzip;
+
+    private InProcessDatabase database;
+    private Connection connection;
+    private TableExporter exporter;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Written {
+        public long rows;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rows = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new InProcessDatabase("export");
+        database.seed(rows);
+        connection = database.connection();
+        exporter = database.tableExporter(connection);
+        exporter.setGzip(gzip);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        connection.close();
+        database.close();
+    }
+
+    @Benchmark
+    public ExportProgress exportPeople(Written counter) {
+        ExportProgress progress = exporter.exportPeople(new DiscardingChannel(), format);
+        counter.rows += progress.rowsWritten();
+        counter.bytes += progress.bytesWritten();
+        return progress;
+    }
+
+    private static final class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.exporter.TableExporter;
+import ch.finecloud.peopledb.model.Address;
+import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.model.Region;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+
+import javax.sql.DataSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The dialect shim that lets the repositories run offline: an in-memory H2 database in MySQL mode with the
+ * PEOPLE and ADDRESSES tables. H2 understands the repositories' SQL as is, but rejects MySQL's streaming
+ * fetch size, so repositories and exporters are configured with a regular one.
+ */
+final class InProcessDatabase implements AutoCloseable {
+
+    private static final int FETCH_SIZE = 1000;
+
+    private final JdbcDataSource dataSource = new JdbcDataSource();
+    private final Connection keepAlive;
+
+    InProcessDatabase(String name) throws SQLException {
+        dataSource.setUrl("jdbc:h2:mem:" + name + ";MODE=MySQL;DATABASE_TO_UPPER=false;DB_CLOSE_DELAY=-1");
+        keepAlive = dataSource.getConnection();
+        try (Statement statement = keepAlive.createStatement()) {
+            for (String ddl : readSchema().split(";")) {
+                if (!ddl.isBlank()) {
+                    statement.execute(ddl);
+                }
+            }
+        }
+    }
+
+    Connection connection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    PeopleRepository peopleRepository(Connection connection) {
+        return configure(new PeopleRepository(connection));
+    }
+
+    PeopleRepository peopleRepository(DataSource dataSource) {
+        return configure(new PeopleRepository(dataSource));
+    }
+
+    // a connection pool of the given size, the caller closes it
+    HikariDataSource pool(int size) {
+        HikariConfig config = new HikariConfig();
+        config.setDataSource(dataSource);
+        config.setMaximumPoolSize(size);
+        return new HikariDataSource(config);
+    }
+
+    // a data source that opens a new connection for every borrow
+    DataSource unpooled() {
+        return dataSource;
+    }
+
+    TableExporter tableExporter(Connection connection) {
+        TableExporter exporter = new TableExporter(connection);
+        exporter.setFetchSize(FETCH_SIZE);
+        return exporter;
+    }
+
+    static <R extends CRUDRepository<?>> R configure(R repository) {
+        repository.setFetchSize(FETCH_SIZE);
+        return repository;
+    }
+
+    void seed(int count) {
+        try (Connection connection = connection()) {
+            peopleRepository(connection).saveAll(newPeople(count));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to seed database", e);
+        }
+    }
+
+    static List<Person> newPeople(int count) {
+        List<Person> people = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Person person = new Person("First" + i, "Last" + i, ZonedDateTime.of(1980 + i % 40, 1 + i % 12, 1 + i % 28, 12, 0, 0, 0, ZoneId.of("+0")));
+            person.setSalary(new BigDecimal(40_000 + i % 60_000));
+            person.setEmail("person" + i + "@example.com");
+            if (i % 2 == 0) {
+                person.setHomeAddress(new Address(null, i + " Main St", null, "Zurich", "ZH", "8000", "Switzerland", "Zurich",
+                        i % 4 == 0 ? Region.WEST : Region.NORTH));
+            }
+            people.add(person);
+        }
+        return people;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        keepAlive.close();
+    }
+
+    private static String readSchema() {
+        try (InputStream in = InProcessDatabase.class.getResourceAsStream("/schema.sql")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps the same joined PEOPLE/ADDRESSES row over and over, so only extractEntityFromResultSet is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingBenchmark {
+
+    private static final String SQL = PeopleRepository.FIND_ALL_SQL + "WHERE P.HOME_ADDRESS IS NOT NULL";
+
+    private InProcessDatabase database;
+    private Connection connection;
+    private PeopleRepository repository;
+    private PreparedStatement ps;
+    private ResultSet rs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new InProcessDatabase("mapping");
+        database.seed(2);
+        connection = database.connection();
+        repository = database.peopleRepository(connection);
+        ps = connection.prepareStatement(SQL);
+        rs = ps.executeQuery();
+        rs.next();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        rs.close();
+        ps.close();
+        connection.close();
+        database.close();
+    }
+
+    @Benchmark
+    public Person extractEntityFromResultSet() throws SQLException {
+        return repository.extractEntityFromResultSet(rs, SQL);
+    }
+}
@@ -0,0 +1,84 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Person;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * findById on one repository shared by as many threads as there are processors, backed by a HikariCP pool of
+ * that size or by a data source that opens a connection per lookup. The statement cache only pays off on the pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class PooledLookupBenchmark {
+
+    @Param("10000")
+    private int rows;
+
+    @Param({"true", "false"})
+    private boolean pooled;
+
+    private InProcessDatabase database;
+    private HikariDataSource pool;
+    private PeopleRepository repository;
+    private long minId;
+    private long maxId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new InProcessDatabase("pooled");
+        database.seed(rows);
+        if (pooled) {
+            pool = database.pool(Runtime.getRuntime().availableProcessors());
+            repository = database.peopleRepository(pool);
+        } else {
+            repository = database.peopleRepository(database.unpooled());
+        }
+        try (Connection connection = database.connection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT MIN(ID), MAX(ID) FROM PEOPLE")) {
+            rs.next();
+            minId = rs.getLong(1);
+            maxId = rs.getLong(2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        if (pool != null) {
+            pool.close();
+        }
+        database.close();
+    }
+
+    @Benchmark
+    public Optional<Person> findById() {
+        return repository.findById(ThreadLocalRandom.current().nextLong(minId, maxId + 1));
+    }
+}
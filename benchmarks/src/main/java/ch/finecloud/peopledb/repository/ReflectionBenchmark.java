@@ -0,0 +1,94 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.annotation.Id;
+import ch.finecloud.peopledb.annotation.MultiSQL;
+import ch.finecloud.peopledb.annotation.SQL;
+import ch.finecloud.peopledb.model.Address;
+import ch.finecloud.peopledb.model.CrudOperation;
+import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.model.Region;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The cached @Id accessors and @SQL lookup against the per-call reflection they replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReflectionBenchmark {
+
+    private final Person person = new Person(1L, "First", "Last", ZonedDateTime.of(1980, 1, 1, 12, 0, 0, 0, ZoneId.of("+0")));
+    private final Address address = new Address(1L, "1 Main St", null, "Zurich", "ZH", "8000", "Switzerland", "Zurich", Region.WEST);
+    private long nextId;
+
+    @Benchmark
+    public Long getIdByMetadata() {
+        return EntityMetadata.of(Person.class).getId(person);
+    }
+
+    @Benchmark
+    public Long getIdByReflection() throws IllegalAccessException {
+        for (Field field : person.getClass().getDeclaredFields()) {
+            if (field.isAnnotationPresent(Id.class)) {
+                field.setAccessible(true);
+                return (Long) field.get(person);
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    @Benchmark
+    public Address setFinalIdByMetadata() {
+        EntityMetadata.of(Address.class).setId(address, ++nextId);
+        return address;
+    }
+
+    @Benchmark
+    public Address setFinalIdByReflection() throws IllegalAccessException {
+        for (Field field : address.getClass().getDeclaredFields()) {
+            if (field.isAnnotationPresent(Id.class)) {
+                field.setAccessible(true);
+                field.set(address, ++nextId);
+            }
+        }
+        return address;
+    }
+
+    @Benchmark
+    public String sqlByRegistry() {
+        return SqlRegistry.of(PeopleRepository.class).get(CrudOperation.FIND_BY_ID);
+    }
+
+    @Benchmark
+    public String sqlByAnnotationScan() {
+        Stream<SQL> multiSqlStream = Arrays.stream(PeopleRepository.class.getDeclaredMethods())
+                .filter(m -> m.isAnnotationPresent(MultiSQL.class))
+                .map(m -> m.getAnnotation(MultiSQL.class))
+                .flatMap(msql -> Arrays.stream(msql.value()));
+        Stream<SQL> sqlStream = Arrays.stream(PeopleRepository.class.getDeclaredMethods())
+                .filter(m -> m.isAnnotationPresent(SQL.class))
+                .map(m -> m.getAnnotation(SQL.class));
+        return Stream.concat(multiSqlStream, sqlStream)
+                .filter(a -> a.operationType().equals(CrudOperation.FIND_BY_ID))
+                .map(SQL::value)
+                .findFirst().orElseThrow();
+    }
+}
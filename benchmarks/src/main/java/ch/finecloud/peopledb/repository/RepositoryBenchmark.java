@@ -0,0 +1,114 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Page;
+import ch.finecloud.peopledb.model.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    private static final String OFFSET_PAGE_SQL = PeopleRepository.FIND_ALL_SQL + "ORDER BY P.ID LIMIT ? OFFSET ?";
+    private static final int PAGE_SIZE = 100;
+
+    @Param("10000")
+    private int rows;
+
+    private InProcessDatabase database;
+    private Connection connection;
+    private PeopleRepository repository;
+    private PreparedStatement offsetPagePS;
+    private long minId;
+    private long maxId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new InProcessDatabase("repository");
+        database.seed(rows);
+        connection = database.connection();
+        repository = database.peopleRepository(connection);
+        offsetPagePS = connection.prepareStatement(OFFSET_PAGE_SQL);
+        try (ResultSet rs = connection.createStatement().executeQuery("SELECT MIN(ID), MAX(ID) FROM PEOPLE")) {
+            rs.next();
+            minId = rs.getLong(1);
+            maxId = rs.getLong(2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        connection.close();
+        database.close();
+    }
+
+    @Benchmark
+    public Person save() {
+        return repository.save(InProcessDatabase.newPeople(1).get(0));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public List<Person> saveAll() {
+        return repository.saveAll(InProcessDatabase.newPeople(100));
+    }
+
+    @Benchmark
+    public Optional<Person> findById() {
+        return repository.findById(ThreadLocalRandom.current().nextLong(minId, maxId + 1));
+    }
+
+    @Benchmark
+    public List<Person> findAll() {
+        return repository.findAll();
+    }
+
+    @Benchmark
+    public void saveAndDelete() {
+        repository.delete(repository.save(InProcessDatabase.newPeople(1).get(0)));
+    }
+
+    // the last page of the seeded rows, by seeking past the last ID of the previous page
+    @Benchmark
+    public Page<Person> keysetLastPage() {
+        return repository.findPage(minId + rows - PAGE_SIZE - 1, PAGE_SIZE);
+    }
+
+    // the same page by skipping all rows before it
+    @Benchmark
+    public void offsetLastPage(Blackhole blackhole) throws SQLException {
+        offsetPagePS.setInt(1, PAGE_SIZE);
+        offsetPagePS.setInt(2, rows - PAGE_SIZE);
+        try (ResultSet rs = offsetPagePS.executeQuery()) {
+            while (rs.next()) {
+                blackhole.consume(repository.extractEntityFromResultSet(rs, OFFSET_PAGE_SQL));
+            }
+        }
+    }
+}
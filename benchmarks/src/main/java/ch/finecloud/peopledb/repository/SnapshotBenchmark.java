@@ -0,0 +1,69 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Region;
+import ch.finecloud.peopledb.model.SalaryStats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans a snapshot of the PEOPLE table. There is no database counterpart, as H2 answers repeated aggregate
+ * queries from its query cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SnapshotBenchmark {
+
+    private static final PeopleSnapshot.Filter SALARY_BAND = PeopleSnapshot.Filter.ALL
+            .salaryBetween(new BigDecimal("40000"), new BigDecimal("60000"));
+
+    @Param("1000000")
+    private int rows;
+
+    private InProcessDatabase database;
+    private PeopleSnapshot snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new InProcessDatabase("snapshot");
+        database.seed(rows);
+        try (Connection connection = database.connection()) {
+            snapshot = database.peopleRepository(connection).snapshot();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        database.close();
+    }
+
+    @Benchmark
+    public List<SalaryStats<Region>> salaryStatsByRegionInSnapshot() {
+        return snapshot.salaryStatsByRegion(PeopleSnapshot.Filter.ALL);
+    }
+
+    @Benchmark
+    public long countSalaryBandInSnapshot() {
+        return snapshot.count(SALARY_BAND);
+    }
+}
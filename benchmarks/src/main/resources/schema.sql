@@ -0,0 +1,24 @@
+CREATE TABLE ADDRESSES
+(
+    ID             BIGINT AUTO_INCREMENT PRIMARY KEY,
+    STREET_ADDRESS VARCHAR(255),
+    ADDRESS2       VARCHAR(255),
+    CITY           VARCHAR(255),
+    STATE          VARCHAR(255),
+    POSTCODE       VARCHAR(255),
+    COUNTY         VARCHAR(255),
+    REGION         VARCHAR(255),
+    COUNTRY        VARCHAR(255),
+    CONTENT_HASH   CHAR(64) UNIQUE
+);
+
+CREATE TABLE PEOPLE
+(
+    ID           BIGINT AUTO_INCREMENT PRIMARY KEY,
+    FIRST_NAME   VARCHAR(255) NOT NULL,
+    LAST_NAME    VARCHAR(255) NOT NULL,
+    DOB          TIMESTAMP    NOT NULL,
+    SALARY       DECIMAL(15, 2),
+    EMAIL        VARCHAR(255),
+    HOME_ADDRESS BIGINT REFERENCES ADDRESSES (ID)
+);
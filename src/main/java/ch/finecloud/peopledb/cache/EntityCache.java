@@ -0,0 +1,29 @@
+package ch.finecloud.peopledb.cache;
+
+import java.util.Optional;
+
+/**
+ * A second-level cache for entities loaded by ID. Repositories consult it in findById and invalidate the
+ * affected IDs on every write. Implementations must be thread-safe.
+ */
+public interface EntityCache<T> {
+
+    Optional<T> get(Long id);
+
+    void put(Long id, T entity);
+
+    // a stamp to take before a row is read, see put(Long, Object, long)
+    long stamp();
+
+    /**
+     * Stores the entity unless its ID was invalidated after the stamp was taken, so that a read racing a write
+     * cannot put back the row the write replaced.
+     */
+    void put(Long id, T entity, long stamp);
+
+    void invalidate(Long id);
+
+    void invalidateAll();
+
+    CacheStats stats();
+}
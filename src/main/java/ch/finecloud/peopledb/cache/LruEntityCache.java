@@ -0,0 +1,114 @@
+package ch.finecloud.peopledb.cache;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Size bounded LRU cache with an optional time to live. Entries past their TTL count as misses and are
+ * dropped when they are read; the least recently used entry is evicted once the cache is full. Invalidations
+ * are remembered per stripe of IDs for guarded puts, an ID sharing a stripe with an invalidated one is not
+ * stored until the next read.
+ */
+public class LruEntityCache<T> implements EntityCache<T> {
+
+    private static final int INVALIDATION_STRIPES = 1024;
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Clock clock;
+    private final LinkedHashMap<Long, Entry<T>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    // the stamp of the latest invalidation per stripe of IDs
+    private final long[] invalidatedAt = new long[INVALIDATION_STRIPES];
+    private long stamp;
+
+    public LruEntityCache(int maxSize) {
+        this(maxSize, Duration.ZERO);
+    }
+
+    // a zero TTL keeps entries until they are evicted or invalidated
+    public LruEntityCache(int maxSize, Duration ttl) {
+        this(maxSize, ttl, Clock.systemUTC());
+    }
+
+    LruEntityCache(int maxSize, Duration ttl, Clock clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry<T>> eldest) {
+                if (size() > LruEntityCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public synchronized Optional<T> get(Long id) {
+        Entry<T> entry = entries.get(id);
+        if (entry != null && ttlMillis > 0 && clock.millis() - entry.createdAt() > ttlMillis) {
+            entries.remove(id);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(entry.entity());
+    }
+
+    @Override
+    public synchronized void put(Long id, T entity) {
+        entries.put(id, new Entry<>(entity, clock.millis()));
+    }
+
+    @Override
+    public synchronized long stamp() {
+        return stamp;
+    }
+
+    @Override
+    public synchronized void put(Long id, T entity, long stamp) {
+        if (invalidatedAt[stripe(id)] <= stamp) {
+            put(id, entity);
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(Long id) {
+        entries.remove(id);
+        invalidatedAt[stripe(id)] = ++stamp;
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        entries.clear();
+        Arrays.fill(invalidatedAt, ++stamp);
+    }
+
+    @Override
+    public synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, entries.size());
+    }
+
+    private static int stripe(Long id) {
+        return Long.hashCode(id) & (INVALIDATION_STRIPES - 1);
+    }
+
+    private record Entry<T>(T entity, long createdAt) {
+    }
+}
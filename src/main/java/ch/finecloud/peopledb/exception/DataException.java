@@ -2,6 +2,6 @@ package ch.finecloud.peopledb.exception;
 
 public class DataException extends RuntimeException {
     public DataException(String message, Throwable e) {
-        super(message);
+        super(message, e);
     }
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package ch.finecloud.peopledb.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes text as UTF-8 into a channel through one char and one byte buffer that are reused for the whole
+ * export, optionally compressing it with gzip. Nothing is written before the char buffer is full or
+ * {@link #finish()} is called.
+ */
+final class ChannelWriter implements Appendable {
+
+    private final WritableByteChannel channel;
+    private final GZIPOutputStream gzip;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+    private long bytesWritten;
+
+    ChannelWriter(WritableByteChannel channel, boolean gzip, int bufferSize) throws IOException {
+        this.channel = channel;
+        this.gzip = gzip ? new GZIPOutputStream(new CountingOutputStream(), bufferSize) : null;
+        this.chars = CharBuffer.allocate(bufferSize);
+        // UTF-8 needs at most three bytes per char, so one encode call rarely overflows
+        this.bytes = ByteBuffer.allocate(bufferSize * 3);
+    }
+
+    @Override
+    public ChannelWriter append(char c) throws IOException {
+        if (!chars.hasRemaining()) {
+            encode(false);
+        }
+        chars.put(c);
+        return this;
+    }
+
+    @Override
+    public ChannelWriter append(CharSequence text) throws IOException {
+        return append(text, 0, text.length());
+    }
+
+    @Override
+    public ChannelWriter append(CharSequence text, int start, int end) throws IOException {
+        while (start < end) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int length = Math.min(chars.remaining(), end - start);
+            chars.append(text, start, start + length);
+            start += length;
+        }
+        return this;
+    }
+
+    // quotes the value if it contains a separator, a quote or a line break, as in RFC 4180
+    ChannelWriter appendCsv(String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return append(value);
+        }
+        append('"');
+        int from = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '"') {
+                append(value, from, i + 1).append('"');
+                from = i + 1;
+            }
+        }
+        return append(value, from, value.length()).append('"');
+    }
+
+    ChannelWriter appendJson(String value) throws IOException {
+        append('"');
+        int from = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                append(value, from, i).append('\\');
+                switch (c) {
+                    case '"', '\\' -> append(c);
+                    case '\n' -> append('n');
+                    case '\r' -> append('r');
+                    case '\t' -> append('t');
+                    default -> append("u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                }
+                from = i + 1;
+            }
+        }
+        return append(value, from, value.length()).append('"');
+    }
+
+    // the number of bytes that reached the channel so far
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes everything still buffered and ends the gzip stream. The channel stays open.
+     */
+    void finish() throws IOException {
+        encode(true);
+        CoderResult result;
+        while ((result = encoder.flush(bytes)).isOverflow()) {
+            write();
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+        write();
+        if (gzip != null) {
+            gzip.finish();
+        }
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                write();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        // keeps the high surrogate of a pair that was split by the end of the buffer
+        chars.compact();
+    }
+
+    private void write() throws IOException {
+        bytes.flip();
+        if (gzip != null) {
+            gzip.write(bytes.array(), bytes.position(), bytes.remaining());
+        } else {
+            while (bytes.hasRemaining()) {
+                bytesWritten += channel.write(bytes);
+            }
+        }
+        bytes.clear();
+    }
+
+    private class CountingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer);
+            }
+        }
+    }
+}
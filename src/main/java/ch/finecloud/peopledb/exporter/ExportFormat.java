@@ -0,0 +1,8 @@
+package ch.finecloud.peopledb.exporter;
+
+public enum ExportFormat {
+    // a header line with the column names, then one line per row
+    CSV,
+    // one JSON object per line, without a header
+    JSON_LINES
+}
@@ -0,0 +1,14 @@
+package ch.finecloud.peopledb.exporter;
+
+/**
+ * Receives the progress of an export every {@link TableExporter#PROGRESS_EVERY} rows. Called from the exporting
+ * thread.
+ */
+@FunctionalInterface
+public interface ExportListener {
+
+    ExportListener NONE = progress -> {
+    };
+
+    void onProgress(ExportProgress progress);
+}
@@ -0,0 +1,17 @@
+package ch.finecloud.peopledb.exporter;
+
+import java.time.Duration;
+
+// bytesWritten counts what reached the channel, i.e. the compressed size when exporting with gzip
+public record ExportProgress(long rowsWritten, long bytesWritten, Duration elapsed) {
+
+    public double rowsPerSecond() {
+        long millis = elapsed.toMillis();
+        return millis == 0 ? 0 : rowsWritten * 1000.0 / millis;
+    }
+
+    public double megabytesPerSecond() {
+        long millis = elapsed.toMillis();
+        return millis == 0 ? 0 : bytesWritten / 1000.0 / millis;
+    }
+}
@@ -0,0 +1,248 @@
+package ch.finecloud.peopledb.exporter;
+
+import ch.finecloud.peopledb.exception.DataException;
+import ch.finecloud.peopledb.repository.AddressRepository;
+import ch.finecloud.peopledb.repository.ConnectionSource;
+import ch.finecloud.peopledb.repository.PeopleRepository;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Streams the PEOPLE and ADDRESSES tables into a channel as CSV or JSON Lines. Each row goes straight from the
+ * result set into a reused buffer without creating entities, so heap use does not depend on the number of rows.
+ * DOB is written in ISO-8601 UTC, e.g. 1980-11-15T21:15:00Z, and empty columns as an empty CSV value or null.
+ */
+public class TableExporter {
+
+    public static final int PROGRESS_EVERY = 100_000;
+
+    private static final Table PEOPLE = new Table("PEOPLE", "SELECT " + PeopleRepository.PERSON_COLUMNS + " FROM PEOPLE AS P ORDER BY P.ID");
+    private static final Table ADDRESSES = new Table("ADDRESSES", AddressRepository.FIND_ALL_SQL + "ORDER BY ID");
+
+    private final ConnectionSource connectionSource;
+    private boolean gzip;
+    private int bufferSize = 64 * 1024;
+    private int fetchSize = Integer.MIN_VALUE;
+    private ExportListener listener = ExportListener.NONE;
+
+    // borrows a connection from the pool for each export
+    public TableExporter(DataSource dataSource) {
+        this(ConnectionSource.of(dataSource));
+    }
+
+    // exports on the given connection, which sees the rows of its open transaction
+    public TableExporter(Connection connection) {
+        this(ConnectionSource.of(connection));
+    }
+
+    // exports on the source's connection of a running transaction, else on one borrowed for each export
+    public TableExporter(ConnectionSource connectionSource) {
+        this.connectionSource = connectionSource;
+    }
+
+    /**
+     * Writes all people to the channel, which is left open.
+     *
+     * @return the final progress, i.e. all rows and bytes written and the total duration
+     */
+    public ExportProgress exportPeople(WritableByteChannel channel, ExportFormat format) {
+        return export(PEOPLE, channel, format);
+    }
+
+    // see exportPeople
+    public ExportProgress exportAddresses(WritableByteChannel channel, ExportFormat format) {
+        return export(ADDRESSES, channel, format);
+    }
+
+    private ExportProgress export(Table table, WritableByteChannel channel, ExportFormat format) {
+        long start = System.nanoTime();
+        try {
+            return connectionSource.withConnection(conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(table.sql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    ps.setFetchSize(fetchSize);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        Column[] columns = columns(rs.getMetaData());
+                        ChannelWriter out = new ChannelWriter(channel, gzip, bufferSize);
+                        if (format == ExportFormat.CSV) {
+                            writeCsvHeader(columns, out);
+                        }
+                        long rows = 0;
+                        while (rs.next()) {
+                            if (format == ExportFormat.CSV) {
+                                writeCsvRow(columns, rs, out);
+                            } else {
+                                writeJsonRow(columns, rs, out);
+                            }
+                            if (++rows % PROGRESS_EVERY == 0) {
+                                listener.onProgress(new ExportProgress(rows, out.getBytesWritten(), Duration.ofNanos(System.nanoTime() - start)));
+                            }
+                        }
+                        out.finish();
+                        return new ExportProgress(rows, out.getBytesWritten(), Duration.ofNanos(System.nanoTime() - start));
+                    }
+                }
+            });
+        } catch (SQLException | IOException e) {
+            throw new DataException("Unable to export " + table.name(), e);
+        }
+    }
+
+    // the repositories own the column lists, the exported names are their camel case, e.g. FIRST_NAME as firstName
+    private static Column[] columns(ResultSetMetaData metaData) throws SQLException {
+        Column[] columns = new Column[metaData.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            Type type = switch (metaData.getColumnType(i + 1)) {
+                case Types.TIMESTAMP, Types.TIMESTAMP_WITH_TIMEZONE -> Type.TIMESTAMP;
+                case Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT, Types.DECIMAL, Types.NUMERIC,
+                        Types.REAL, Types.FLOAT, Types.DOUBLE -> Type.NUMBER;
+                default -> Type.TEXT;
+            };
+            columns[i] = new Column(camelCase(metaData.getColumnLabel(i + 1)), type);
+        }
+        return columns;
+    }
+
+    private static String camelCase(String column) {
+        StringBuilder name = new StringBuilder(column.length());
+        boolean upper = false;
+        for (char c : column.toCharArray()) {
+            if (c == '_') {
+                upper = true;
+            } else {
+                name.append(upper ? Character.toUpperCase(c) : Character.toLowerCase(c));
+                upper = false;
+            }
+        }
+        return name.toString();
+    }
+
+    private static void writeCsvHeader(Column[] columns, ChannelWriter out) throws IOException {
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(columns[i].name());
+        }
+        out.append('\n');
+    }
+
+    private static void writeCsvRow(Column[] columns, ResultSet rs, ChannelWriter out) throws SQLException, IOException {
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            switch (columns[i].type()) {
+                case NUMBER -> {
+                    String value = rs.getString(i + 1);
+                    if (value != null) {
+                        out.append(value);
+                    }
+                }
+                case TEXT -> {
+                    String value = rs.getString(i + 1);
+                    if (value != null) {
+                        out.appendCsv(value);
+                    }
+                }
+                case TIMESTAMP -> {
+                    LocalDateTime value = rs.getObject(i + 1, LocalDateTime.class);
+                    if (value != null) {
+                        appendTimestamp(value, out);
+                    }
+                }
+            }
+        }
+        out.append('\n');
+    }
+
+    private static void writeJsonRow(Column[] columns, ResultSet rs, ChannelWriter out) throws SQLException, IOException {
+        for (int i = 0; i < columns.length; i++) {
+            Column column = columns[i];
+            out.append(i == 0 ? "{\"" : ",\"").append(column.name()).append("\":");
+            switch (column.type()) {
+                case NUMBER -> {
+                    String value = rs.getString(i + 1);
+                    out.append(value != null ? value : "null");
+                }
+                case TEXT -> {
+                    String value = rs.getString(i + 1);
+                    if (value != null) {
+                        out.appendJson(value);
+                    } else {
+                        out.append("null");
+                    }
+                }
+                case TIMESTAMP -> {
+                    LocalDateTime value = rs.getObject(i + 1, LocalDateTime.class);
+                    if (value != null) {
+                        appendTimestamp(value, out.append('"'));
+                        out.append('"');
+                    } else {
+                        out.append("null");
+                    }
+                }
+            }
+        }
+        out.append("}\n");
+    }
+
+    // the column holds UTC, see PeopleRepository
+    private static void appendTimestamp(LocalDateTime value, ChannelWriter out) throws IOException {
+        DateTimeFormatter.ISO_LOCAL_DATE_TIME.formatTo(value, out);
+        out.append('Z');
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    // the number of chars buffered before they are encoded and written
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    // Integer.MIN_VALUE streams row by row, positive values need "useCursorFetch=true" in the MySQL URL
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public void setListener(ExportListener listener) {
+        this.listener = listener;
+    }
+
+    private record Table(String name, String sql) {
+    }
+
+    private record Column(String name, Type type) {
+    }
+
+    private enum Type {
+        NUMBER, TEXT, TIMESTAMP
+    }
+}
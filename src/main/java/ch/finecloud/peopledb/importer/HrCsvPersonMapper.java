@@ -0,0 +1,63 @@
+package ch.finecloud.peopledb.importer;
+
+import ch.finecloud.peopledb.model.Address;
+import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.model.Region;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Maps one line of the HR sample files (e.g. Hr5m.csv) to a Person with its home address.
+ */
+public class HrCsvPersonMapper implements Function<String, Person> {
+
+    private static final int FIRST_NAME = 2;
+    private static final int LAST_NAME = 4;
+    private static final int EMAIL = 6;
+    private static final int TIME_OF_BIRTH = 11;
+    private static final int DATE_OF_BIRTH = 10;
+    private static final int SALARY = 25;
+    private static final int PLACE_NAME = 29;
+    private static final int COUNTY = 30;
+    private static final int CITY = 31;
+    private static final int STATE = 32;
+    private static final int ZIP = 33;
+    private static final int REGION = 34;
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/yyyy");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("hh:mm:ss a").localizedBy(Locale.ENGLISH);
+    private static final ZoneId UTC = ZoneId.of("+0");
+
+    @Override
+    public Person apply(String line) {
+        String[] a = line.split(",");
+        LocalDate dob = LocalDate.parse(a[DATE_OF_BIRTH], DATE_FORMAT);
+        LocalTime tob = LocalTime.parse(a[TIME_OF_BIRTH], TIME_FORMAT);
+        Person person = new Person(a[FIRST_NAME], a[LAST_NAME], ZonedDateTime.of(LocalDateTime.of(dob, tob), UTC));
+        person.setSalary(new BigDecimal(a[SALARY]));
+        person.setEmail(a[EMAIL]);
+        if (a.length > REGION) {
+            person.setHomeAddress(new Address(null, a[PLACE_NAME], null, a[CITY], a[STATE], a[ZIP], "United States",
+                    a[COUNTY], toRegion(a[REGION])));
+        }
+        return person;
+    }
+
+    // the files use more regions than the Region enum knows, those are stored without a region
+    private static Region toRegion(String name) {
+        for (Region region : Region.values()) {
+            if (region.name().equalsIgnoreCase(name)) {
+                return region;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,13 @@
+package ch.finecloud.peopledb.importer;
+
+/**
+ * Receives the progress of an import after every commit. Called from the writer threads.
+ */
+@FunctionalInterface
+public interface ImportListener {
+
+    ImportListener NONE = progress -> {
+    };
+
+    void onProgress(ImportProgress progress);
+}
@@ -0,0 +1,11 @@
+package ch.finecloud.peopledb.importer;
+
+import java.time.Duration;
+
+public record ImportProgress(long rowsWritten, Duration elapsed) {
+
+    public double rowsPerSecond() {
+        long millis = elapsed.toMillis();
+        return millis == 0 ? 0 : rowsWritten * 1000.0 / millis;
+    }
+}
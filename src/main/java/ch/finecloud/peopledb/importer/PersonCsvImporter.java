@@ -0,0 +1,259 @@
+package ch.finecloud.peopledb.importer;
+
+import ch.finecloud.peopledb.exception.DataException;
+import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.repository.PeopleRepository;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Loads people from a CSV file in a pipeline: one reader hands chunks of lines to several parser threads, which
+ * pass the parsed people through a bounded queue to several writers. Each writer has its own connection, saves
+ * in JDBC batches and commits every {@link #getCommitEvery()} rows. The bounded queues make fast stages wait for
+ * slow ones, so memory use does not depend on the file size.
+ */
+public class PersonCsvImporter {
+
+    private static final List<String> END_OF_LINES = new ArrayList<>();
+    private static final List<Person> END_OF_PEOPLE = new ArrayList<>();
+    private static final int CHUNK_SIZE = 1000;
+
+    private final DataSource dataSource;
+    private final Function<String, Person> mapper;
+    private int parserThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int writerThreads = 4;
+    private int commitEvery = 10_000;
+    private int queueCapacity = 64;
+    private ImportListener listener = ImportListener.NONE;
+
+    public PersonCsvImporter(DataSource dataSource) {
+        this(dataSource, new HrCsvPersonMapper());
+    }
+
+    public PersonCsvImporter(DataSource dataSource, Function<String, Person> mapper) {
+        this.dataSource = dataSource;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Imports all lines of the file after the header line.
+     *
+     * @return the final progress, i.e. all rows written and the total duration
+     */
+    public ImportProgress importFile(Path file) {
+        long start = System.nanoTime();
+        AtomicLong rowsWritten = new AtomicLong();
+        Pipeline pipeline = new Pipeline();
+        ExecutorService executor = Executors.newFixedThreadPool(1 + parserThreads + writerThreads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            tasks.add(executor.submit(pipeline.stage(() -> read(file, pipeline))));
+            AtomicInteger runningParsers = new AtomicInteger(parserThreads);
+            for (int i = 0; i < parserThreads; i++) {
+                tasks.add(executor.submit(pipeline.stage(() -> parse(pipeline, runningParsers))));
+            }
+            for (int i = 0; i < writerThreads; i++) {
+                tasks.add(executor.submit(pipeline.stage(() -> write(pipeline, rowsWritten, start))));
+            }
+            for (Future<?> task : tasks) {
+                await(task, pipeline);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (pipeline.failure.get() != null) {
+            throw new DataException("Unable to import people", pipeline.failure.get());
+        }
+        return new ImportProgress(rowsWritten.get(), Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private Void read(Path file, Pipeline pipeline) throws IOException, InterruptedException {
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            reader.readLine(); // header
+            List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    chunk.add(line);
+                }
+                if (chunk.size() == CHUNK_SIZE) {
+                    pipeline.put(pipeline.lines, chunk);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                pipeline.put(pipeline.lines, chunk);
+            }
+        } finally {
+            for (int i = 0; i < parserThreads; i++) {
+                pipeline.put(pipeline.lines, END_OF_LINES);
+            }
+        }
+        return null;
+    }
+
+    private Void parse(Pipeline pipeline, AtomicInteger runningParsers) throws InterruptedException {
+        try {
+            List<String> lines;
+            while ((lines = pipeline.take(pipeline.lines)) != END_OF_LINES) {
+                List<Person> people = new ArrayList<>(lines.size());
+                for (String line : lines) {
+                    people.add(mapper.apply(line));
+                }
+                pipeline.put(pipeline.people, people);
+            }
+        } finally {
+            // the last parser to finish tells the writers that no more people will come
+            if (runningParsers.decrementAndGet() == 0) {
+                for (int i = 0; i < writerThreads; i++) {
+                    pipeline.put(pipeline.people, END_OF_PEOPLE);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Void write(Pipeline pipeline, AtomicLong rowsWritten, long start) throws SQLException, InterruptedException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            PeopleRepository repository = new PeopleRepository(connection);
+            repository.setBatchSize(Math.min(commitEvery, repository.getBatchSize()));
+            List<Person> pending = new ArrayList<>(commitEvery);
+            List<Person> people;
+            while ((people = pipeline.take(pipeline.people)) != END_OF_PEOPLE) {
+                pending.addAll(people);
+                if (pending.size() >= commitEvery) {
+                    commit(repository, connection, pending, rowsWritten, start);
+                }
+            }
+            if (!pending.isEmpty()) {
+                commit(repository, connection, pending, rowsWritten, start);
+            }
+        }
+        return null;
+    }
+
+    private void commit(PeopleRepository repository, Connection connection, List<Person> pending,
+                        AtomicLong rowsWritten, long start) throws SQLException {
+        repository.saveAll(pending);
+        connection.commit();
+        long written = rowsWritten.addAndGet(pending.size());
+        pending.clear();
+        listener.onProgress(new ImportProgress(written, Duration.ofNanos(System.nanoTime() - start)));
+    }
+
+    private static void await(Future<?> task, Pipeline pipeline) {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            // the stage recorded its failure in the pipeline
+        } catch (InterruptedException e) {
+            pipeline.failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getParserThreads() {
+        return parserThreads;
+    }
+
+    public void setParserThreads(int parserThreads) {
+        this.parserThreads = requirePositive(parserThreads, "parser threads");
+    }
+
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = requirePositive(writerThreads, "writer threads");
+    }
+
+    public int getCommitEvery() {
+        return commitEvery;
+    }
+
+    public void setCommitEvery(int commitEvery) {
+        this.commitEvery = requirePositive(commitEvery, "commit interval");
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    // the number of chunks of 1000 lines or people each queue holds before its producers wait
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = requirePositive(queueCapacity, "queue capacity");
+    }
+
+    public void setListener(ImportListener listener) {
+        this.listener = listener;
+    }
+
+    private static int requirePositive(int value, String name) {
+        if (value < 1) {
+            throw new IllegalArgumentException("Number of " + name + " must be at least 1");
+        }
+        return value;
+    }
+
+    private class Pipeline {
+        private final BlockingQueue<List<String>> lines = new ArrayBlockingQueue<>(queueCapacity + parserThreads);
+        private final BlockingQueue<List<Person>> people = new ArrayBlockingQueue<>(queueCapacity + writerThreads);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // a failing stage stops the others, which would otherwise wait on its queue forever
+        private Callable<Void> stage(Callable<Void> work) {
+            return () -> {
+                try {
+                    return work.call();
+                } catch (Exception | Error e) {
+                    failure.compareAndSet(null, e);
+                    throw e;
+                }
+            };
+        }
+
+        // waits while the queue is full, but gives up once another stage has failed
+        private <E> void put(BlockingQueue<E> queue, E element) throws InterruptedException {
+            while (!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                checkNotFailed();
+            }
+        }
+
+        private <E> E take(BlockingQueue<E> queue) throws InterruptedException {
+            E element;
+            while ((element = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkNotFailed();
+            }
+            return element;
+        }
+
+        private void checkNotFailed() throws InterruptedException {
+            if (failure.get() != null) {
+                throw new InterruptedException("Import aborted");
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package ch.finecloud.peopledb.metrics;
+
+/**
+ * Emits a "ch.finecloud.peopledb.Statement" JFR event per repository operation. The events cost next to nothing
+ * while no recording has them enabled.
+ */
+public class JfrMetricsListener implements RepositoryMetricsListener {
+
+    @Override
+    public void onStatement(StatementMetrics metrics) {
+        StatementEvent event = new StatementEvent();
+        if (event.isEnabled()) {
+            event.repository = metrics.repository();
+            event.operation = metrics.operation().name();
+            event.rows = metrics.rows();
+            event.prepareTime = metrics.prepareNanos();
+            event.executeTime = metrics.executeNanos();
+            event.mapTime = metrics.mapNanos();
+            event.failed = metrics.failed();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ch.finecloud.peopledb.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The aggregated metrics of one operation of one repository.
+ */
+public class OperationStats {
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram prepareLatency = new LatencyHistogram();
+    private final LatencyHistogram executeLatency = new LatencyHistogram();
+    private final LatencyHistogram mapLatency = new LatencyHistogram();
+
+    void record(StatementMetrics metrics) {
+        calls.increment();
+        rows.add(metrics.rows());
+        if (metrics.failed()) {
+            errors.increment();
+        }
+        latency.record(metrics.totalNanos());
+        prepareLatency.record(metrics.prepareNanos());
+        executeLatency.record(metrics.executeNanos());
+        mapLatency.record(metrics.mapNanos());
+    }
+
+    public long calls() {
+        return calls.sum();
+    }
+
+    public long rows() {
+        return rows.sum();
+    }
+
+    public long errors() {
+        return errors.sum();
+    }
+
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    public LatencyHistogram prepareLatency() {
+        return prepareLatency;
+    }
+
+    public LatencyHistogram executeLatency() {
+        return executeLatency;
+    }
+
+    public LatencyHistogram mapLatency() {
+        return mapLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "OperationStats{" +
+                "calls=" + calls() +
+                ", rows=" + rows() +
+                ", errors=" + errors() +
+                ", p50=" + latency.percentile(50) + "ns" +
+                ", p99=" + latency.percentile(99) + "ns" +
+                ", max=" + latency.max() + "ns" +
+                '}';
+    }
+}
@@ -0,0 +1,32 @@
+package ch.finecloud.peopledb.metrics;
+
+import ch.finecloud.peopledb.model.CrudOperation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Aggregates call, row and error counts plus latency histograms per repository and operation.
+ */
+public class RecordingMetricsListener implements RepositoryMetricsListener {
+
+    private final Map<Key, OperationStats> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void onStatement(StatementMetrics metrics) {
+        stats.computeIfAbsent(new Key(metrics.repository(), metrics.operation()), k -> new OperationStats()).record(metrics);
+    }
+
+    // the stats of the operation, empty stats if it was never called
+    public OperationStats stats(String repository, CrudOperation operation) {
+        OperationStats operationStats = stats.get(new Key(repository, operation));
+        return operationStats == null ? new OperationStats() : operationStats;
+    }
+
+    public Map<Key, OperationStats> snapshot() {
+        return Map.copyOf(stats);
+    }
+
+    public record Key(String repository, CrudOperation operation) {
+    }
+}
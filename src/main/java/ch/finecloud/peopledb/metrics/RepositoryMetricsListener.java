@@ -0,0 +1,21 @@
+package ch.finecloud.peopledb.metrics;
+
+/**
+ * Receives the metrics of every repository operation on the thread that ran it. Repositories skip all
+ * measurements while their listener is {@link #NONE}.
+ */
+@FunctionalInterface
+public interface RepositoryMetricsListener {
+
+    RepositoryMetricsListener NONE = metrics -> {
+    };
+
+    void onStatement(StatementMetrics metrics);
+
+    default RepositoryMetricsListener andThen(RepositoryMetricsListener next) {
+        return metrics -> {
+            onStatement(metrics);
+            next.onStatement(metrics);
+        };
+    }
+}
@@ -0,0 +1,41 @@
+package ch.finecloud.peopledb.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("ch.finecloud.peopledb.Statement")
+@Label("Repository Statement")
+@Description("One operation of a peopledb repository")
+@Category({"peopledb", "JDBC"})
+@StackTrace(false)
+class StatementEvent extends Event {
+
+    @Label("Repository")
+    String repository;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Prepare Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long prepareTime;
+
+    @Label("Execute Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long executeTime;
+
+    @Label("Map Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long mapTime;
+
+    @Label("Failed")
+    boolean failed;
+}
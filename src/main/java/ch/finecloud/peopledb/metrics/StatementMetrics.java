@@ -0,0 +1,15 @@
+package ch.finecloud.peopledb.metrics;
+
+import ch.finecloud.peopledb.model.CrudOperation;
+
+/**
+ * The measurements of one repository operation. Mapping time includes fetching the rows from the server, since
+ * the driver reads them while the result set is iterated.
+ */
+public record StatementMetrics(String repository, CrudOperation operation, long rows,
+                               long prepareNanos, long executeNanos, long mapNanos, boolean failed) {
+
+    public long totalNanos() {
+        return prepareNanos + executeNanos + mapNanos;
+    }
+}
@@ -3,9 +3,21 @@ package ch.finecloud.peopledb.model;
 public enum CrudOperation {
     SAVE,
     UPDATE,
+    UPSERT,
     FIND_BY_ID,
+    FIND_BY_IDS,
     FIND_ALL,
+    FIND_PAGE,
     DELETE_ONE,
     DELETE_MANY,
-    COUNT
+    COUNT,
+    AGGREGATE;
+
+    // whether the operation only reads and may thus run on a replica
+    public boolean isRead() {
+        return switch (this) {
+            case FIND_BY_ID, FIND_BY_IDS, FIND_ALL, FIND_PAGE, COUNT, AGGREGATE -> true;
+            default -> false;
+        };
+    }
 }
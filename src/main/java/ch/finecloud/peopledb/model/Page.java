@@ -0,0 +1,9 @@
+package ch.finecloud.peopledb.model;
+
+import java.util.List;
+
+/**
+ * One page of a keyset pagination. Pass nextAfterId to the next findPage call to continue after this page.
+ */
+public record Page<T>(List<T> items, Long nextAfterId, boolean hasNext) {
+}
@@ -5,11 +5,18 @@ import ch.finecloud.peopledb.annotation.Id;
 import java.math.BigDecimal;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.EnumSet;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 
 public class Person {
 
+    // the fields a repository writes, named after their columns
+    public enum Field {
+        FIRST_NAME, LAST_NAME, DOB, SALARY, EMAIL, HOME_ADDRESS
+    }
+
     @Id
     private Long id;
 
@@ -19,6 +26,8 @@ public class Person {
     private BigDecimal salary = new BigDecimal("0");
     private String email;
     private Optional<Address> homeAddress = Optional.empty();
+    // null until a repository loaded or wrote the person, all fields count as changed until then
+    private EnumSet<Field> changedFields;
 
 
     public Person(long id, String firstName, String lastName, ZonedDateTime dob, BigDecimal salary) {
@@ -50,6 +59,7 @@ public class Person {
     }
 
     public void setFirstName(String firstName) {
+        changed(Field.FIRST_NAME, this.firstName, firstName);
         this.firstName = firstName;
     }
 
@@ -58,6 +68,7 @@ public class Person {
     }
 
     public void setLastName(String lastName) {
+        changed(Field.LAST_NAME, this.lastName, lastName);
         this.lastName = lastName;
     }
 
@@ -66,6 +77,7 @@ public class Person {
     }
 
     public void setDob(ZonedDateTime dob) {
+        changed(Field.DOB, this.dob, dob);
         this.dob = dob;
     }
 
@@ -74,6 +86,7 @@ public class Person {
     }
 
     public void setSalary(BigDecimal salary) {
+        changed(Field.SALARY, this.salary, salary);
         this.salary = salary;
     }
 
@@ -82,6 +95,7 @@ public class Person {
     }
 
     public void setEmail(String email) {
+        changed(Field.EMAIL, this.email, email);
         this.email = email;
     }
 
@@ -110,10 +124,34 @@ public class Person {
     }
 
     public void setHomeAddress(Address homeAddress) {
+        changed(Field.HOME_ADDRESS, this.homeAddress.orElse(null), homeAddress);
         this.homeAddress = Optional.ofNullable(homeAddress);
     }
 
     public Optional<Address> getHomeAddress() {
         return homeAddress;
     }
+
+    /**
+     * @return the fields set to a different value since the person was last loaded or written by a repository,
+     * or all fields if it never was
+     */
+    public Set<Field> getChangedFields() {
+        return changedFields == null ? EnumSet.allOf(Field.class) : EnumSet.copyOf(changedFields);
+    }
+
+    // called by repositories once the person matches its row
+    public void markUnchanged() {
+        if (changedFields == null) {
+            changedFields = EnumSet.noneOf(Field.class);
+        } else {
+            changedFields.clear();
+        }
+    }
+
+    private void changed(Field field, Object oldValue, Object newValue) {
+        if (changedFields != null && !Objects.equals(oldValue, newValue)) {
+            changedFields.add(field);
+        }
+    }
 }
@@ -0,0 +1,14 @@
+package ch.finecloud.peopledb.model;
+
+import java.math.BigDecimal;
+
+/**
+ * Salary statistics of one group of people, e.g. of one region. People without a salary are not counted, min and
+ * max are null when nobody in the group has one.
+ *
+ * @param group             the group's key, null for the people the key is unknown for
+ * @param standardDeviation the population standard deviation
+ */
+public record SalaryStats<K>(K group, long count, BigDecimal total, BigDecimal min, BigDecimal max, double average,
+                             double standardDeviation) {
+}
@@ -0,0 +1,27 @@
+package ch.finecloud.peopledb.model;
+
+/**
+ * The rows one upsert batch inserted and updated. MySQL reports 1 per inserted and 2 per updated row. Connector/J
+ * reports found rows by default, so a row upserted with its current values counts as inserted unless the URL sets
+ * "useAffectedRows=true". Rows the driver reports without a count, e.g. with rewritten batches, are unknown.
+ */
+public record UpsertCounts(long inserted, long updated, long unknown) {
+
+    public static UpsertCounts of(int[] updateCounts) {
+        long inserted = 0;
+        long updated = 0;
+        long unknown = 0;
+        for (int count : updateCounts) {
+            switch (count) {
+                case 1 -> inserted++;
+                case 0, 2 -> updated++;
+                default -> unknown++;
+            }
+        }
+        return new UpsertCounts(inserted, updated, unknown);
+    }
+
+    public UpsertCounts plus(UpsertCounts other) {
+        return new UpsertCounts(inserted + other.inserted, updated + other.updated, unknown + other.unknown);
+    }
+}
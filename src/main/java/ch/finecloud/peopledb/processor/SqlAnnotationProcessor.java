@@ -0,0 +1,163 @@
+package ch.finecloud.peopledb.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Reads the @SQL and @MultiSQL declarations of the repositories at build time and generates
+ * ch.finecloud.peopledb.repository.GeneratedSqlRegistry, so that SqlRegistry needs no reflection for them. The
+ * annotations are matched by name, which lets this processor be compiled before the rest of the module.
+ */
+@SupportedAnnotationTypes({SqlAnnotationProcessor.SQL, SqlAnnotationProcessor.MULTI_SQL})
+public class SqlAnnotationProcessor extends AbstractProcessor {
+
+    static final String SQL = "ch.finecloud.peopledb.annotation.SQL";
+    static final String MULTI_SQL = "ch.finecloud.peopledb.annotation.MultiSQL";
+    static final String PACKAGE = "ch.finecloud.peopledb.repository";
+    static final String REGISTRY = "GeneratedSqlRegistry";
+
+    private boolean generated;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (generated || annotations.isEmpty()) {
+            return false;
+        }
+        // the SQL per operation of each repository class, by binary name
+        Map<String, Map<String, String>> repositories = new TreeMap<>();
+        for (TypeElement annotation : annotations) {
+            for (Element method : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (method.getKind() == ElementKind.METHOD) {
+                    TypeElement repository = (TypeElement) method.getEnclosingElement();
+                    repositories.computeIfAbsent(processingEnv.getElementUtils().getBinaryName(repository).toString(),
+                            name -> readAnnotations(repository));
+                }
+            }
+        }
+        try {
+            write(repositories);
+            generated = true;
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write " + REGISTRY + ": " + e);
+        }
+        return false;
+    }
+
+    // the same precedence as at runtime: repeated @SQL annotations come wrapped in @MultiSQL and win over single ones
+    private static Map<String, String> readAnnotations(TypeElement repository) {
+        Map<String, String> sqlByOperation = new LinkedHashMap<>();
+        for (Element element : repository.getEnclosedElements()) {
+            AnnotationMirror multiSql = annotation(element, MULTI_SQL);
+            if (multiSql != null) {
+                for (Object sql : (List<?>) value(multiSql, "value")) {
+                    put(sqlByOperation, (AnnotationMirror) ((AnnotationValue) sql).getValue());
+                }
+            }
+        }
+        for (Element element : repository.getEnclosedElements()) {
+            AnnotationMirror sql = annotation(element, SQL);
+            if (sql != null) {
+                put(sqlByOperation, sql);
+            }
+        }
+        return sqlByOperation;
+    }
+
+    private static void put(Map<String, String> sqlByOperation, AnnotationMirror sql) {
+        String operation = ((VariableElement) value(sql, "operationType")).getSimpleName().toString();
+        sqlByOperation.putIfAbsent(operation, (String) value(sql, "value"));
+    }
+
+    private static AnnotationMirror annotation(Element element, String type) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(type)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private static Object value(AnnotationMirror mirror, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue().getValue();
+            }
+        }
+        throw new IllegalArgumentException(name + " missing in " + mirror);
+    }
+
+    private void write(Map<String, Map<String, String>> repositories) throws IOException {
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(PACKAGE + "." + REGISTRY).openWriter())) {
+            out.println("package " + PACKAGE + ";");
+            out.println();
+            out.println("import ch.finecloud.peopledb.model.CrudOperation;");
+            out.println();
+            out.println("import javax.annotation.processing.Generated;");
+            out.println("import java.util.Collections;");
+            out.println("import java.util.EnumMap;");
+            out.println("import java.util.Map;");
+            out.println();
+            out.println("@Generated(\"" + SqlAnnotationProcessor.class.getName() + "\")");
+            out.println("final class " + REGISTRY + " {");
+            out.println();
+            out.println("    private " + REGISTRY + "() {");
+            out.println("    }");
+            out.println();
+            out.println("    // the @SQL declarations of the repository class, or null if it was not compiled with the processor");
+            out.println("    static Map<CrudOperation, String> of(String repositoryClass) {");
+            out.println("        Map<CrudOperation, String> sql = new EnumMap<>(CrudOperation.class);");
+            out.println("        switch (repositoryClass) {");
+            for (Map.Entry<String, Map<String, String>> repository : repositories.entrySet()) {
+                out.println("            case " + literal(repository.getKey()) + " -> {");
+                for (Map.Entry<String, String> sql : repository.getValue().entrySet()) {
+                    out.println("                sql.put(CrudOperation." + sql.getKey() + ", " + literal(sql.getValue()) + ");");
+                }
+                out.println("            }");
+            }
+            out.println("            default -> {");
+            out.println("                return null;");
+            out.println("            }");
+            out.println("        }");
+            out.println("        return Collections.unmodifiableMap(sql);");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private static String literal(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> literal.append("\\\"");
+                case '\\' -> literal.append("\\\\");
+                case '\n' -> literal.append("\\n");
+                case '\r' -> literal.append("\\r");
+                case '\t' -> literal.append("\\t");
+                default -> literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+}
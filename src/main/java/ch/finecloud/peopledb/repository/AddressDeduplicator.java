@@ -0,0 +1,70 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Address;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Identifies addresses by a hash of their normalized content and remembers the IDs of the most recently saved
+ * or found hashes, so that repeated addresses need no lookup at all.
+ */
+final class AddressDeduplicator {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final char SEPARATOR = '\u001F';
+
+    private final Map<String, Long> ids;
+
+    AddressDeduplicator(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        ids = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized Long get(String contentHash) {
+        return ids.get(contentHash);
+    }
+
+    synchronized void put(String contentHash, long id) {
+        ids.put(contentHash, id);
+    }
+
+    /**
+     * The hex encoded SHA-256 of the address fields without the ID. Fields are compared trimmed, with runs of
+     * whitespace collapsed and ignoring case, and a blank field equals a missing one.
+     */
+    static String contentHash(Address address) {
+        StringBuilder content = new StringBuilder(128);
+        for (String field : new String[]{address.streetAddress(), address.address2(), address.city(), address.state(),
+                address.postcode(), address.county(), address.region() == null ? null : address.region().name(),
+                address.country()}) {
+            content.append(normalize(field)).append(SEPARATOR);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(content.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static String normalize(String field) {
+        if (field == null || field.isBlank()) {
+            return "";
+        }
+        return WHITESPACE.matcher(field.strip()).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+}
@@ -4,70 +4,391 @@ import ch.finecloud.peopledb.annotation.SQL;
 import ch.finecloud.peopledb.model.Address;
 import ch.finecloud.peopledb.model.CrudOperation;
 import ch.finecloud.peopledb.model.Region;
+import ch.finecloud.peopledb.model.UpsertCounts;
 
+import javax.sql.DataSource;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
 
+/**
+ * Stores addresses. With {@link #setDeduplication(int)} an address that is already stored is not inserted again,
+ * its existing ID is reused instead. Deduplication needs a unique CONTENT_HASH CHAR(64) column on ADDRESSES, and
+ * every writer of ADDRESSES must deduplicate, as rows changed in place would keep the hash of their old content.
+ */
 public class AddressRepository extends CRUDRepository<Address> {
 
-
     public static final String SAVE_ADDRESS_SQL = """
             INSERT INTO ADDRESSES (STREET_ADDRESS, ADDRESS2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY)
             VALUES(?, ?, ?, ?, ?, ?, ?, ?)
             """;
-    public static final String FIND_ALL_SQL = """
-            SELECT ID, STREET_ADDRESS, ADDRESS2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY
-            FROM ADDRESSES
+    public static final String SAVE_DEDUPLICATED_ADDRESS_SQL = """
+            INSERT INTO ADDRESSES (STREET_ADDRESS, ADDRESS2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY, CONTENT_HASH)
+            VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)
             """;
-    public static final String FIND_BY_ID_SQL = """
-            SELECT ID, STREET_ADDRESS, ADDRESS2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY
-            FROM ADDRESSES
-            WHERE ID=?
+    // an insert sees rows that other transactions committed after ours began, and takes the ID of the one it collides with
+    public static final String INSERT_OR_FIND_ADDRESS_SQL = SAVE_DEDUPLICATED_ADDRESS_SQL + "ON DUPLICATE KEY UPDATE ID=LAST_INSERT_ID(ID)";
+    public static final String FIND_IDS_BY_CONTENT_HASH_SQL = "SELECT ID, CONTENT_HASH FROM ADDRESSES WHERE CONTENT_HASH IN (:ids)";
+    // a locking read, unlike a plain one it sees the rows committed after the transaction's first read
+    public static final String LOCK_IDS_BY_CONTENT_HASH_SQL = FIND_IDS_BY_CONTENT_HASH_SQL + " FOR UPDATE";
+    public static final String UPSERT_ADDRESS_SQL = """
+            INSERT INTO ADDRESSES (ID, STREET_ADDRESS, ADDRESS2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY)
+            VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON DUPLICATE KEY UPDATE STREET_ADDRESS=VALUES(STREET_ADDRESS), ADDRESS2=VALUES(ADDRESS2), CITY=VALUES(CITY),
+            STATE=VALUES(STATE), POSTCODE=VALUES(POSTCODE), COUNTY=VALUES(COUNTY), REGION=VALUES(REGION), COUNTRY=VALUES(COUNTRY)
             """;
+    // the columns of ADDRESSES, e.g. for exports
+    public static final String ADDRESS_COLUMNS = "ID, STREET_ADDRESS, ADDRESS2, CITY, STATE, POSTCODE, COUNTY, REGION, COUNTRY";
+    public static final String FIND_ALL_SQL = "SELECT " + ADDRESS_COLUMNS + " FROM ADDRESSES\n";
+    public static final String FIND_BY_ID_SQL = FIND_ALL_SQL + "WHERE ID=?";
+    public static final String FIND_BY_IDS_SQL = FIND_ALL_SQL + "WHERE ID IN (:ids)";
+    public static final String FIND_PAGE_SQL = FIND_ALL_SQL + "WHERE ID > ? ORDER BY ID LIMIT ?";
     private static final String SELECT_COUNT_SQL = "SELECT COUNT(*) FROM ADDRESSES";
     public static final String DELETE_SQL = "todo";
     public static final String DELETE_IN_SQL = "todo";
     public static final String UPDATE_SQL = "todo";
+    private static final Map<String, Region> REGIONS = new HashMap<>();
+
+    static {
+        for (Region region : Region.values()) {
+            REGIONS.put(region.name(), region);
+            REGIONS.put(region.name().toLowerCase(), region);
+        }
+    }
 
+    private static final ProjectionTable PROJECTIONS = new ProjectionTable("ID", "ADDRESSES", "ADDRESSES", Map.of(
+            "id", ProjectedProperty.of("ID", Long.class, (rs, i) -> rs.getObject(i, Long.class)),
+            "streetAddress", ProjectedProperty.of("STREET_ADDRESS", String.class, ResultSet::getString),
+            "address2", ProjectedProperty.of("ADDRESS2", String.class, ResultSet::getString),
+            "city", ProjectedProperty.of("CITY", String.class, ResultSet::getString),
+            "state", ProjectedProperty.of("STATE", String.class, ResultSet::getString),
+            "postcode", ProjectedProperty.of("POSTCODE", String.class, ResultSet::getString),
+            "county", ProjectedProperty.of("COUNTY", String.class, ResultSet::getString),
+            "region", ProjectedProperty.of("REGION", Region.class, (rs, i) -> toRegion(rs.getString(i))),
+            "country", ProjectedProperty.of("COUNTRY", String.class, ResultSet::getString)));
+
+    private AddressDeduplicator deduplicator;
+    private final ColumnIndexes columns = new ColumnIndexes(
+            "ID", "STREET_ADDRESS", "ADDRESS2", "CITY", "STATE", "POSTCODE", "COUNTY", "REGION", "COUNTRY");
 
     public AddressRepository(Connection connection) {
         super(connection);
     }
 
+    public AddressRepository(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    public AddressRepository(ConnectionSource connectionSource) {
+        super(connectionSource);
+    }
+
+    public AddressRepository(ConnectionSource connectionSource, ConnectionSource readSource) {
+        super(connectionSource, readSource);
+    }
+
+    /**
+     * Reuses the IDs of stored addresses with the same content on save, see {@link AddressDeduplicator}.
+     *
+     * @param cacheSize how many content hashes and their IDs are kept in memory, 0 turns deduplication off
+     */
+    public void setDeduplication(int cacheSize) {
+        deduplicator = cacheSize == 0 ? null : new AddressDeduplicator(cacheSize);
+    }
+
+    public boolean isDeduplicating() {
+        return deduplicator != null;
+    }
+
+    @Override
+    public Address save(Address entity) {
+        if (deduplicator == null) {
+            return super.save(entity);
+        }
+        return saveAll(List.of(entity)).get(0);
+    }
+
+    /**
+     * With deduplication, each address takes the ID of the row with its content. An address that already has
+     * another ID is left as it is, as it may be shared, and the returned list holds a copy with the row's ID.
+     */
+    @Override
+    public List<Address> saveAll(Collection<Address> entities) {
+        if (deduplicator == null) {
+            return super.saveAll(entities);
+        }
+        return saveDeduplicated(new ArrayList<>(entities)).addresses();
+    }
+
+    /**
+     * With deduplication, a stored address may be shared by many people and is never changed in place. Each
+     * address is saved instead and takes the ID of the row with its content, the reused ones count as updated.
+     * Use saveAll to get the addresses with the IDs they were resolved to.
+     */
+    @Override
+    public List<UpsertCounts> upsertAll(Collection<Address> entities) {
+        if (deduplicator == null) {
+            return super.upsertAll(entities);
+        }
+        List<UpsertCounts> counts = new ArrayList<>();
+        for (List<Address> chunk : chunk(new ArrayList<>(entities))) {
+            int inserted = saveDeduplicated(chunk).inserted();
+            counts.add(new UpsertCounts(inserted, chunk.size() - inserted, 0));
+        }
+        return counts;
+    }
+
+    // the saved addresses in the given order, and how many rows were inserted for them
+    private record Deduplicated(List<Address> addresses, int inserted) {
+    }
+
+    private Deduplicated saveDeduplicated(List<Address> addresses) {
+        return withConnection(CrudOperation.SAVE, "Unable to save deduplicated addresses", (connection, timer) -> {
+            // the first address of each content is the one inserted if the content is new
+            Map<String, Address> byHash = new LinkedHashMap<>();
+            List<String> hashes = new ArrayList<>(addresses.size());
+            for (Address address : addresses) {
+                String hash = AddressDeduplicator.contentHash(address);
+                hashes.add(hash);
+                byHash.putIfAbsent(hash, address);
+            }
+            Map<String, Long> ids = new HashMap<>();
+            List<String> unknown = new ArrayList<>();
+            for (String hash : byHash.keySet()) {
+                Long id = deduplicator.get(hash);
+                if (id != null) {
+                    ids.put(hash, id);
+                } else {
+                    unknown.add(hash);
+                }
+            }
+            findIdsByContentHash(connection, FIND_IDS_BY_CONTENT_HASH_SQL, unknown, ids);
+            timer.prepared();
+            Map<String, Address> missing = new LinkedHashMap<>();
+            unknown.stream().filter(h -> !ids.containsKey(h)).forEach(h -> missing.put(h, byHash.get(h)));
+            int inserted = insert(connection, missing, ids);
+            timer.rows(missing.size());
+            timer.executed();
+            // inside a transaction the rows may still be rolled back, so only committed IDs are remembered
+            if (connection.getAutoCommit()) {
+                byHash.keySet().forEach(hash -> deduplicator.put(hash, ids.get(hash)));
+            }
+            List<Address> saved = new ArrayList<>(addresses.size());
+            for (int i = 0; i < addresses.size(); i++) {
+                saved.add(withId(addresses.get(i), ids.get(hashes.get(i))));
+            }
+            return new Deduplicated(saved, inserted);
+        });
+    }
+
+    // a new address takes its ID like any saved entity, a stored one may be cached or shared and is copied instead
+    private static Address withId(Address address, long id) {
+        if (address.id() == null) {
+            EntityMetadata.of(Address.class).setId(address, id);
+            return address;
+        }
+        if (address.id() == id) {
+            return address;
+        }
+        return new Address(id, address.streetAddress(), address.address2(), address.city(), address.state(),
+                address.postcode(), address.country(), address.county(), address.region());
+    }
+
+    private void findIdsByContentHash(Connection connection, String sql, List<String> hashes, Map<String, Long> ids) throws SQLException {
+        int maxSize = IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+        for (int from = 0; from < hashes.size(); from += maxSize) {
+            List<String> chunk = hashes.subList(from, Math.min(from + maxSize, hashes.size()));
+            int size = inListSize(chunk.size());
+            PreparedStatement ps = prepare(connection, inListSql(sql, size));
+            for (int i = 0; i < size; i++) {
+                // pads the list by repeating its last hash
+                ps.setString(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ids.put(rs.getString(2), rs.getLong(1));
+                }
+            }
+        }
+    }
+
+    // returns how many rows were inserted
+    private int insert(Connection connection, Map<String, Address> missing, Map<String, Long> ids) throws SQLException {
+        List<String> hashes = new ArrayList<>(missing.keySet());
+        int inserted = 0;
+        for (int from = 0; from < hashes.size(); from += getBatchSize()) {
+            List<String> chunk = hashes.subList(from, Math.min(from + getBatchSize(), hashes.size()));
+            PreparedStatement ps = prepare(connection, SAVE_DEDUPLICATED_ADDRESS_SQL, Statement.RETURN_GENERATED_KEYS);
+            try {
+                for (String hash : chunk) {
+                    mapColumns(missing.get(hash), ps, 1);
+                    ps.setString(9, hash);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            } catch (BatchUpdateException e) {
+                clearBatch(ps, e);
+                // another writer stored one of the addresses in the meantime and the unique hash rejected ours
+                if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+                    throw e;
+                }
+                inserted += insertOrFind(connection, chunk, e.getUpdateCounts(), missing, ids);
+                continue;
+            } catch (SQLException | RuntimeException e) {
+                clearBatch(ps, e);
+                throw e;
+            }
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                int i = 0;
+                while (rs.next() && i < chunk.size()) {
+                    ids.put(chunk.get(i++), rs.getLong(1));
+                }
+            }
+            inserted += chunk.size();
+        }
+        return inserted;
+    }
+
+    /**
+     * Takes over a batch that collided with addresses another writer stored in the meantime. The rows the batch
+     * reports as inserted are looked up, the others are inserted one by one and take the ID of the stored row where
+     * one collides. A plain SELECT cannot find those, under REPEATABLE READ it does not see rows committed after the
+     * transaction's first read.
+     *
+     * @return how many rows were inserted, by the batch or here
+     */
+    private int insertOrFind(Connection connection, List<String> hashes, int[] updateCounts, Map<String, Address> missing,
+                             Map<String, Long> ids) throws SQLException {
+        int inserted = 0;
+        List<String> notReturned = new ArrayList<>();
+        for (int i = 0; i < hashes.size(); i++) {
+            String hash = hashes.get(i);
+            // drivers that stop at the first failure report fewer counts than rows
+            if (i < updateCounts.length && updateCounts[i] != Statement.EXECUTE_FAILED) {
+                inserted++;
+                notReturned.add(hash);
+                continue;
+            }
+            PreparedStatement ps = prepare(connection, SAVE_DEDUPLICATED_ADDRESS_SQL, Statement.RETURN_GENERATED_KEYS);
+            mapColumns(missing.get(hash), ps, 1);
+            ps.setString(9, hash);
+            try {
+                ps.executeUpdate();
+                inserted++;
+            } catch (SQLException e) {
+                if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+                    throw e;
+                }
+                // the found rows count of the upsert cannot tell the collision apart, so only its ID is taken
+                ps = prepare(connection, INSERT_OR_FIND_ADDRESS_SQL, Statement.RETURN_GENERATED_KEYS);
+                mapColumns(missing.get(hash), ps, 1);
+                ps.setString(9, hash);
+                ps.executeUpdate();
+            }
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (rs.next()) {
+                    ids.put(hash, rs.getLong(1));
+                } else {
+                    notReturned.add(hash);
+                }
+            }
+        }
+        // the rows of the batch, and collisions whose ID drivers other than Connector/J may not return
+        findIdsByContentHash(connection, LOCK_IDS_BY_CONTENT_HASH_SQL, notReturned, ids);
+        for (String hash : notReturned) {
+            if (!ids.containsKey(hash)) {
+                throw new SQLException("Unable to find the ID of address " + hash);
+            }
+        }
+        return inserted;
+    }
+
+    @Override
+    ProjectionTable getProjectionTable() {
+        return PROJECTIONS;
+    }
+
     @Override
     @SQL(value = FIND_BY_ID_SQL, operationType = CrudOperation.FIND_BY_ID)
+    @SQL(value = FIND_BY_IDS_SQL, operationType = CrudOperation.FIND_BY_IDS)
     @SQL(value = FIND_ALL_SQL, operationType = CrudOperation.FIND_ALL)
+    @SQL(value = FIND_PAGE_SQL, operationType = CrudOperation.FIND_PAGE)
     @SQL(value = SELECT_COUNT_SQL, operationType = CrudOperation.COUNT)
     @SQL(value = DELETE_SQL, operationType = CrudOperation.DELETE_ONE)
     @SQL(value = DELETE_IN_SQL, operationType = CrudOperation.DELETE_MANY)
-    Address extractEntityFromResultSet(ResultSet rs) throws SQLException {
-        long id = rs.getLong("ID");
-        String streetAddress = rs.getString("STREET_ADDRESS");
-        String address2 = rs.getString("ADDRESS2");
-        String city = rs.getString("CITY");
-        String state = rs.getString("STATE");
-        String postcode = rs.getString("POSTCODE");
-        String county = rs.getString("COUNTY");
-        Region region = Region.valueOf(rs.getString("REGION").toUpperCase());
-        String country = rs.getString("COUNTRY");
-        Address address = new Address(id, streetAddress, address2, city, state, postcode, county, country, region);
-        return address;
+    Address extractEntityFromResultSet(ResultSet rs, String sql) throws SQLException {
+        return extractAddress(rs, columns.of(sql, rs), 0);
+    }
+
+    /**
+     * Shared with queries that join ADDRESSES, where the address ID comes under a different column label.
+     *
+     * @param columns the indexes of the ID, STREET_ADDRESS, ADDRESS2, CITY, STATE, POSTCODE, COUNTY, REGION and
+     *                COUNTRY columns, from {@code from} on
+     */
+    static Address extractAddress(ResultSet rs, int[] columns, int from) throws SQLException {
+        long id = rs.getLong(columns[from]);
+        String streetAddress = rs.getString(columns[from + 1]);
+        String address2 = rs.getString(columns[from + 2]);
+        String city = rs.getString(columns[from + 3]);
+        String state = rs.getString(columns[from + 4]);
+        String postcode = rs.getString(columns[from + 5]);
+        String county = rs.getString(columns[from + 6]);
+        Region region = toRegion(rs.getString(columns[from + 7]));
+        String country = rs.getString(columns[from + 8]);
+        return new Address(id, streetAddress, address2, city, state, postcode, country, county, region);
+    }
+
+    // reads an address from nine consecutive columns in the order above, or returns null if its ID is NULL
+    static Address extractAddress(ResultSet rs, int firstColumn) throws SQLException {
+        rs.getLong(firstColumn);
+        if (rs.wasNull()) {
+            return null;
+        }
+        return extractAddress(rs, IntStream.range(firstColumn, firstColumn + 9).toArray(), 0);
+    }
+
+    // regions are saved by name, so the table almost always hits and toUpperCase is only needed for odd spellings
+    static Region toRegion(String name) {
+        if (name == null) {
+            return null;
+        }
+        Region region = REGIONS.get(name);
+        return region != null ? region : Region.valueOf(name.toUpperCase());
     }
 
     @Override
     @SQL(operationType = CrudOperation.SAVE, value = SAVE_ADDRESS_SQL)
     void mapForSave(Address entity, PreparedStatement ps) throws SQLException {
-        ps.setString(1, entity.streetAddress());
-        ps.setString(2, entity.address2());
-        ps.setString(3, entity.city());
-        ps.setString(4, entity.state());
-        ps.setString(5, entity.postcode());
-        ps.setString(6, entity.county());
-        ps.setString(7, entity.region().toString());
-        ps.setString(8, entity.country());
+        mapColumns(entity, ps, 1);
+    }
+
+    @Override
+    @SQL(operationType = CrudOperation.UPSERT, value = UPSERT_ADDRESS_SQL)
+    void mapForUpsert(Address entity, PreparedStatement ps) throws SQLException {
+        ps.setLong(1, entity.id());
+        mapColumns(entity, ps, 2);
+    }
 
+    private static void mapColumns(Address entity, PreparedStatement ps, int from) throws SQLException {
+        ps.setString(from, entity.streetAddress());
+        ps.setString(from + 1, entity.address2());
+        ps.setString(from + 2, entity.city());
+        ps.setString(from + 3, entity.state());
+        ps.setString(from + 4, entity.postcode());
+        ps.setString(from + 5, entity.county());
+        ps.setString(from + 6, entity.region() == null ? null : entity.region().toString());
+        ps.setString(from + 7, entity.country());
     }
 
     @Override
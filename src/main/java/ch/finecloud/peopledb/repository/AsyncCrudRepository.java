@@ -0,0 +1,110 @@
+package ch.finecloud.peopledb.repository;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs the operations of a repository off the calling thread and returns CompletableFutures, so that independent
+ * lookups can be fanned out. Tasks run on virtual threads when the JVM has them (Java 21+), where a semaphore caps
+ * the operations in flight, and on a pool of maxConcurrency threads otherwise. maxConcurrency should not exceed the
+ * connection pool size.
+ */
+public class AsyncCrudRepository<T> implements AutoCloseable {
+
+    private final CRUDRepository<T> repository;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    AsyncCrudRepository(CRUDRepository<T> repository, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        this.repository = repository;
+        this.permits = new Semaphore(maxConcurrency);
+        this.executor = newExecutor(maxConcurrency);
+    }
+
+    public CompletableFuture<T> save(T entity) {
+        return submit(() -> repository.save(entity));
+    }
+
+    public CompletableFuture<Optional<T>> findById(Long id) {
+        return submit(() -> repository.findById(id));
+    }
+
+    public CompletableFuture<List<T>> findAll() {
+        return submit(repository::findAll);
+    }
+
+    public CompletableFuture<Long> count() {
+        return submit(repository::count);
+    }
+
+    public CompletableFuture<Void> update(T entity) {
+        return submit(() -> {
+            repository.update(entity);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> delete(T entity) {
+        return submit(() -> {
+            repository.delete(entity);
+            return null;
+        });
+    }
+
+    private <R> CompletableFuture<R> submit(Supplier<R> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return operation.get();
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    // stops accepting operations and waits for the submitted ones to finish
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newExecutor(int maxConcurrency) {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            // platform threads waiting for a permit would pile up, so the pool itself caps the concurrency
+            return Executors.newFixedThreadPool(maxConcurrency, r -> {
+                Thread thread = new Thread(r, "async-repository");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unable to create executor", e);
+        }
+    }
+}
@@ -1,182 +1,882 @@
 package ch.finecloud.peopledb.repository;
 
-import ch.finecloud.peopledb.annotation.Id;
-import ch.finecloud.peopledb.annotation.MultiSQL;
-import ch.finecloud.peopledb.annotation.SQL;
+import ch.finecloud.peopledb.cache.EntityCache;
 import ch.finecloud.peopledb.exception.DataException;
+import ch.finecloud.peopledb.metrics.RepositoryMetricsListener;
 import ch.finecloud.peopledb.exception.UnableToSaveException;
 import ch.finecloud.peopledb.model.CrudOperation;
+import ch.finecloud.peopledb.model.Page;
+import ch.finecloud.peopledb.model.UpsertCounts;
 
+import javax.sql.DataSource;
 import java.sql.*;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 abstract class CRUDRepository<T> {
 
-    protected Connection connection;
-    private PreparedStatement savePS;
-    private PreparedStatement findByIdPS;
-    private PreparedStatement findAllPS;
-    private PreparedStatement countPS;
-    private PreparedStatement deletePS;
-    private PreparedStatement updatePS;
-    private PreparedStatement deleteManyPS;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    // the sizes of the IN lists that ID based bulk statements are split into, a shorter last chunk gets padded
+    static final int[] IN_LIST_SIZES = {1, 8, 32, 128};
+    static final int MAX_CRITERIA_SHAPES = 256;
+    // MySQL Connector/J streams rows one by one for forward-only, read-only statements with this fetch size
+    public static final int MYSQL_STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
 
-    public CRUDRepository(Connection connection) {
-        try {
-            this.connection = connection;
-            savePS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.SAVE, this::getSaveSql), Statement.RETURN_GENERATED_KEYS);
-            findByIdPS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.FIND_BY_ID, this::getFindByIdSql));
-            findAllPS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.FIND_ALL, this::getFindAllSql));
-            countPS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.COUNT, this::getCountSql));
-            deletePS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.DELETE_ONE, this::getDeleteSql));
-            updatePS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.UPDATE, this::getUpdateSql));
-        } catch (SQLException e) {
-            throw new DataException("Unable to create prepared statement for CrudRepository", e);
+    protected final ConnectionSource connectionSource;
+    // where reads go outside of transactions, e.g. a replica, the connectionSource itself if there is none
+    private final ConnectionSource readSource;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int fetchSize = MYSQL_STREAMING_FETCH_SIZE;
+    private EntityCache<T> cache;
+    private RepositoryMetricsListener metricsListener = RepositoryMetricsListener.NONE;
+    private final String saveSql;
+    private final String findByIdSql;
+    private final String findByIdsSql;
+    private final String findAllSql;
+    private final String findPageSql;
+    private final String countSql;
+    private final String deleteSql;
+    private final String deleteManySql;
+    private final String updateSql;
+    private final String upsertSql;
+    private final Map<Class<?>, Projection<?>> projections = new ConcurrentHashMap<>();
+    // the find SQL per criteria shape, bounded as combined criteria can make any number of shapes
+    private final Map<String, String> criteriaSql = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CRITERIA_SHAPES;
         }
+    });
+    private final Map<Set<String>, LongAdder> filterUsage = new ConcurrentHashMap<>();
+
+    public CRUDRepository(Connection connection) {
+        this(ConnectionSource.of(connection));
+    }
+
+    public CRUDRepository(DataSource dataSource) {
+        this(ConnectionSource.of(dataSource));
+    }
+
+    public CRUDRepository(ConnectionSource connectionSource) {
+        this(connectionSource, connectionSource);
+    }
+
+    /**
+     * A repository that writes to the primary source and reads from the read source, e.g. a replica. Reads still go
+     * to the primary while the thread holds one of its connections, i.e. in {@link #inTransaction(Supplier)} and
+     * {@link #readFromPrimary(Supplier)}, so that they see the thread's own writes.
+     */
+    public CRUDRepository(ConnectionSource connectionSource, ConnectionSource readSource) {
+        this.connectionSource = connectionSource;
+        this.readSource = readSource;
+        saveSql = getSqlByAnnotation(CrudOperation.SAVE, this::getSaveSql);
+        findByIdSql = getSqlByAnnotation(CrudOperation.FIND_BY_ID, this::getFindByIdSql);
+        findByIdsSql = getSqlByAnnotation(CrudOperation.FIND_BY_IDS, this::getFindByIdsSql);
+        findAllSql = getSqlByAnnotation(CrudOperation.FIND_ALL, this::getFindAllSql);
+        findPageSql = getSqlByAnnotation(CrudOperation.FIND_PAGE, this::getFindPageSql);
+        countSql = getSqlByAnnotation(CrudOperation.COUNT, this::getCountSql);
+        deleteSql = getSqlByAnnotation(CrudOperation.DELETE_ONE, this::getDeleteSql);
+        deleteManySql = getSqlByAnnotation(CrudOperation.DELETE_MANY, this::getDeleteInSql);
+        updateSql = getSqlByAnnotation(CrudOperation.UPDATE, this::getUpdateSql);
+        upsertSql = getSqlByAnnotation(CrudOperation.UPSERT, this::getUpsertSql);
     }
 
 
     public T save(T entity) throws UnableToSaveException {
-        try {
+        return withConnection(CrudOperation.SAVE, "Unable to create prepared statement for CrudRepository", (connection, timer) -> {
+            PreparedStatement savePS = prepare(connection, saveSql, Statement.RETURN_GENERATED_KEYS);
+            timer.prepared();
             mapForSave(entity, savePS);
-            int recordsAffected = savePS.executeUpdate();
-            ResultSet rs = savePS.getGeneratedKeys();
-            while (rs.next()) {
-                long id = rs.getLong(1);
-                setIdByAnnotation(id, entity);
-//                System.out.println(entity);
-            }
-//            System.out.printf("Records affected: %d%n", recordsAffected);
+            timer.rows(savePS.executeUpdate());
+            timer.executed();
+            try (ResultSet rs = savePS.getGeneratedKeys()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    setIdByAnnotation(id, entity);
+                }
+            }
+            afterWrite(entity);
+            return entity;
+        });
+    }
+
+    /**
+     * Saves all entities using JDBC batches of {@link #getBatchSize()} rows and writes the generated IDs back
+     * into the entities. Add "rewriteBatchedStatements=true" to the MySQL URL to send each batch as one statement.
+     */
+    public List<T> saveAll(Collection<T> entities) {
+        List<T> saved = new ArrayList<>(entities);
+        return withConnection(CrudOperation.SAVE, "Unable to save entities in batch", (connection, timer) -> {
+            for (List<T> chunk : chunk(saved)) {
+                saveChunk(connection, timer, chunk);
+            }
+            return saved;
+        });
+    }
+
+    private void saveChunk(Connection connection, StatementTimer timer, List<T> chunk) throws SQLException {
+        prepareForSaveAll(chunk);
+        PreparedStatement savePS = prepare(connection, saveSql, Statement.RETURN_GENERATED_KEYS);
+        timer.prepared();
+        try {
+            for (T entity : chunk) {
+                mapForSave(entity, savePS);
+                savePS.addBatch();
+            }
+            savePS.executeBatch();
+        } catch (BatchUpdateException e) {
+            // the driver may have inserted the rows around a failed one, they get their IDs so they are not saved twice
+            List<T> inserted = new ArrayList<>();
+            int[] counts = e.getUpdateCounts();
+            for (int i = 0; i < counts.length && i < chunk.size(); i++) {
+                if (counts[i] != Statement.EXECUTE_FAILED) {
+                    inserted.add(chunk.get(i));
+                }
+            }
+            setGeneratedIds(savePS, inserted);
+            inserted.forEach(this::afterWrite);
+            throw e;
+        } catch (SQLException | RuntimeException e) {
+            clearBatch(savePS, e);
+            throw e;
+        }
+        timer.executed();
+        timer.rows(chunk.size());
+        setGeneratedIds(savePS, chunk);
+        chunk.forEach(this::afterWrite);
+        timer.mapped();
+    }
+
+    // statements are cached per connection, so rows queued before a failure would run with its next batch
+    static void clearBatch(Statement statement, Exception failure) {
+        try {
+            statement.clearBatch();
         } catch (SQLException e) {
-            throw new DataException("Unable to create prepared statement for CrudRepository", e);
+            failure.addSuppressed(e);
+        }
+    }
+
+    private void setGeneratedIds(PreparedStatement savePS, List<T> entities) throws SQLException {
+        try (ResultSet rs = savePS.getGeneratedKeys()) {
+            int i = 0;
+            while (rs.next() && i < entities.size()) {
+                setIdByAnnotation(rs.getLong(1), entities.get(i++));
+            }
         }
-        return entity;
+    }
+
+    /**
+     * Inserts the entity, or updates its row if one with the same ID exists, in one round trip. An entity
+     * without an ID cannot match a row and is saved.
+     */
+    public UpsertCounts upsert(T entity) {
+        return upsertAll(List.of(entity)).get(0);
+    }
+
+    /**
+     * Upserts all entities in JDBC batches of {@link #getBatchSize()} rows, see {@link #upsert(Object)}.
+     *
+     * @return the counts of each batch
+     */
+    public List<UpsertCounts> upsertAll(Collection<T> entities) {
+        return withConnection(CrudOperation.UPSERT, "Unable to upsert entities in batch", (connection, timer) -> {
+            List<UpsertCounts> counts = new ArrayList<>();
+            for (List<T> chunk : chunk(new ArrayList<>(entities))) {
+                List<T> newEntities = new ArrayList<>();
+                List<T> existingEntities = new ArrayList<>();
+                for (T entity : chunk) {
+                    (getIdByAnnotation(entity) == null ? newEntities : existingEntities).add(entity);
+                }
+                UpsertCounts chunkCounts = new UpsertCounts(newEntities.size(), 0, 0);
+                if (!newEntities.isEmpty()) {
+                    saveChunk(connection, timer, newEntities);
+                }
+                if (!existingEntities.isEmpty()) {
+                    prepareForUpsertAll(existingEntities);
+                    PreparedStatement upsertPS = prepare(connection, upsertSql);
+                    timer.prepared();
+                    try {
+                        for (T entity : existingEntities) {
+                            mapForUpsert(entity, upsertPS);
+                            upsertPS.addBatch();
+                        }
+                        chunkCounts = chunkCounts.plus(UpsertCounts.of(upsertPS.executeBatch()));
+                    } catch (SQLException | RuntimeException e) {
+                        clearBatch(upsertPS, e);
+                        throw e;
+                    }
+                    timer.executed();
+                    timer.rows(existingEntities.size());
+                    existingEntities.forEach(this::afterWrite);
+                }
+                counts.add(chunkCounts);
+            }
+            return counts;
+        });
     }
 
     public Optional<T> findById(Long id) {
-        T entity = null;
-        try {
+        if (cache != null) {
+            Optional<T> cached = cache.get(id);
+            if (cached.isPresent()) {
+                return cached.map(this::copyOf);
+            }
+        }
+        long stamp = cacheStamp();
+        long dependentsStamp = dependentsCacheStamp();
+        return withConnection(CrudOperation.FIND_BY_ID, "Unable to create prepared statement for CrudRepository", (connection, timer) -> {
+            PreparedStatement findByIdPS = prepare(connection, findByIdSql);
+            timer.prepared();
             findByIdPS.setLong(1, id);
-            ResultSet rs = findByIdPS.executeQuery();
-            while (rs.next()) {
-                entity = extractEntityFromResultSet(rs);
+            T entity = null;
+            try (ResultSet rs = findByIdPS.executeQuery()) {
+                timer.executed();
+                while (rs.next()) {
+                    entity = extractEntityFromResultSet(rs, findByIdSql);
+                    timer.rows(1);
+                }
+            }
+            if (entity != null && isCacheable(connection)) {
+                if (cache != null) {
+                    cache.put(id, copyOf(entity), stamp);
+                }
+                cacheDependents(entity, dependentsStamp);
+            }
+            return Optional.ofNullable(entity);
+        });
+    }
+
+    /**
+     * Finds the entities with the given IDs in one IN list query per chunk of IDs.
+     *
+     * @return one element per requested ID in the order of the IDs, empty for IDs that were not found
+     */
+    public List<Optional<T>> findAllById(Collection<Long> ids) {
+        Map<Long, T> found = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long id : new LinkedHashSet<>(ids)) {
+            Optional<T> cached = cache == null ? Optional.empty() : cache.get(id);
+            if (cached.isPresent()) {
+                found.put(id, copyOf(cached.get()));
+            } else {
+                missing.add(id);
             }
-        } catch (SQLException e) {
-            throw new DataException("Unable to create prepared statement for CrudRepository", e);
         }
-        return Optional.ofNullable(entity);
+        if (!missing.isEmpty()) {
+            long stamp = cacheStamp();
+            long dependentsStamp = dependentsCacheStamp();
+            withConnection(CrudOperation.FIND_BY_IDS, "Unable to find entities by IDs", (connection, timer) -> {
+                boolean cacheable = isCacheable(connection);
+                forEachInListChunk(missing.stream().mapToLong(Long::longValue).toArray(), (size, chunks) -> {
+                    String sql = inListSql(findByIdsSql, size);
+                    PreparedStatement findByIdsPS = prepare(connection, sql);
+                    timer.prepared();
+                    for (long[] chunk : chunks) {
+                        bindInList(findByIdsPS, chunk);
+                        try (ResultSet rs = findByIdsPS.executeQuery()) {
+                            timer.executed();
+                            while (rs.next()) {
+                                T entity = extractEntityFromResultSet(rs, sql);
+                                timer.rows(1);
+                                Long id = getIdByAnnotation(entity);
+                                found.put(id, entity);
+                                if (cacheable) {
+                                    if (cache != null) {
+                                        cache.put(id, copyOf(entity), stamp);
+                                    }
+                                    cacheDependents(entity, dependentsStamp);
+                                }
+                            }
+                        }
+                        timer.mapped();
+                    }
+                });
+                return null;
+            });
+        }
+        List<Optional<T>> entities = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            entities.add(Optional.ofNullable(found.get(id)));
+        }
+        return entities;
+    }
+
+    /**
+     * A loader that collects findById calls from many threads for the given window and loads them with one
+     * findAllById call. The repository must be backed by a DataSource if the loader is used concurrently with
+     * other callers.
+     */
+    public CoalescingLoader<T> coalescingLoader(Duration window, int maxBatchSize) {
+        return new CoalescingLoader<>(this::findAllById, window, maxBatchSize);
+    }
+
+    /**
+     * An asynchronous view of this repository. Repositories on a single connection run one operation at a time,
+     * whatever maxConcurrency is.
+     */
+    public AsyncCrudRepository<T> async(int maxConcurrency) {
+        boolean threadSafe = connectionSource.isThreadSafe() && readSource.isThreadSafe();
+        return new AsyncCrudRepository<>(this, threadSafe ? maxConcurrency : 1);
+    }
+
+    /**
+     * A view that buffers saves, updates and deletes and writes them in batches once flushSize entities are
+     * pending or flushInterval has passed. The repository must be backed by a DataSource if it is used directly
+     * while the buffer flushes in the background.
+     */
+    public WriteBehindRepository<T> writeBehind(int flushSize, Duration flushInterval, int capacity) {
+        return new WriteBehindRepository<>(this, flushSize, flushInterval, capacity);
     }
 
     public List<T> findAll() {
-        List<T> entities = new ArrayList<>();
+        return withConnection(CrudOperation.FIND_ALL, "Unable to create prepared statement for CrudRepository", (connection, timer) -> {
+            List<T> entities = new ArrayList<>();
+            PreparedStatement findAllPS = prepare(connection, findAllSql);
+            timer.prepared();
+            try (ResultSet rs = findAllPS.executeQuery()) {
+                timer.executed();
+                while (rs.next()) {
+                    entities.add(extractEntityFromResultSet(rs, findAllSql));
+                }
+            }
+            timer.rows(entities.size());
+            return entities;
+        });
+    }
+
+    /**
+     * Finds all entities, but selects and maps only the properties of the projection, a record or an interface,
+     * see {@link Projection}.
+     */
+    public <R> List<R> findAll(Class<R> projectionType) {
+        Projection<R> projection = projection(projectionType);
+        return withConnection(CrudOperation.FIND_ALL, "Unable to find projections", (connection, timer) -> {
+            List<R> results = new ArrayList<>();
+            PreparedStatement findAllPS = prepare(connection, projection.findAllSql());
+            timer.prepared();
+            try (ResultSet rs = findAllPS.executeQuery()) {
+                timer.executed();
+                while (rs.next()) {
+                    results.add(projection.map(rs));
+                }
+            }
+            timer.rows(results.size());
+            return results;
+        });
+    }
+
+    // like findAll(Class), for one entity
+    public <R> Optional<R> findById(Long id, Class<R> projectionType) {
+        Projection<R> projection = projection(projectionType);
+        return withConnection(CrudOperation.FIND_BY_ID, "Unable to find projection", (connection, timer) -> {
+            PreparedStatement findByIdPS = prepare(connection, projection.findByIdSql());
+            timer.prepared();
+            findByIdPS.setLong(1, id);
+            try (ResultSet rs = findByIdPS.executeQuery()) {
+                timer.executed();
+                if (rs.next()) {
+                    timer.rows(1);
+                    return Optional.of(projection.map(rs));
+                }
+            }
+            return Optional.empty();
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> Projection<R> projection(Class<R> projectionType) {
+        return (Projection<R>) projections.computeIfAbsent(projectionType, type -> Projection.of(type, getProjectionTable()));
+    }
+
+    /**
+     * Finds up to limit entities with an ID greater than afterId, ordered by ID. Seeking past the last ID
+     * instead of skipping an OFFSET keeps every page as fast as the first one.
+     *
+     * @param afterId the nextAfterId of the previous page, or null for the first page
+     */
+    public Page<T> findPage(Long afterId, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Page limit must be at least 1");
+        }
+        return withConnection(CrudOperation.FIND_PAGE, "Unable to find page", (connection, timer) -> {
+            PreparedStatement findPagePS = prepare(connection, findPageSql);
+            timer.prepared();
+            findPagePS.setLong(1, afterId == null ? 0 : afterId);
+            // one extra row tells whether there is a next page
+            findPagePS.setInt(2, limit + 1);
+            List<T> entities = new ArrayList<>(limit);
+            boolean hasNext = false;
+            try (ResultSet rs = findPagePS.executeQuery()) {
+                timer.executed();
+                while (rs.next()) {
+                    if (entities.size() == limit) {
+                        hasNext = true;
+                        break;
+                    }
+                    entities.add(extractEntityFromResultSet(rs, findPageSql));
+                }
+            }
+            timer.rows(entities.size());
+            Long nextAfterId = entities.isEmpty() ? afterId : getIdByAnnotation(entities.get(entities.size() - 1));
+            return new Page<>(entities, nextAfterId, hasNext);
+        });
+    }
+
+    /**
+     * Streams all entities without buffering the table in memory. The stream holds an open statement and
+     * must be closed, e.g. with try-with-resources. While it is open, MySQL allows no other statement on
+     * the same connection unless the URL sets "useCursorFetch=true" and the fetch size is positive.
+     */
+    public Stream<T> streamAll() {
+        return stream(CrudOperation.FIND_ALL, findAllSql, false, ps -> {});
+    }
+
+    /**
+     * Streams the entities that match the criteria, see {@link #streamAll()}. The statements are cached by the
+     * shape of the criteria, so the stream must be closed before the next query on its connection.
+     */
+    public Stream<T> find(Criteria<T> criteria) {
+        filterUsage.computeIfAbsent(criteria.getColumns(), c -> new LongAdder()).increment();
+        String sql = criteriaSql.computeIfAbsent(criteria.getShape(), shape -> findAllSql + "WHERE " + shape);
+        return stream(CrudOperation.FIND_ALL, sql, true, criteria::bind);
+    }
+
+    /**
+     * @return how often find was called per combination of filtered columns, to tell which indexes pay off
+     */
+    public Map<Set<String>, Long> getFilterUsage() {
+        Map<Set<String>, Long> usage = new HashMap<>();
+        filterUsage.forEach((columns, count) -> usage.put(columns, count.sum()));
+        return usage;
+    }
+
+    /**
+     * Streaming variant for any finder, the binder sets the statement's parameters. A cached statement stays
+     * open when the stream is closed, other statements are closed with it.
+     */
+    Stream<T> stream(CrudOperation operation, String sql, boolean cachedStatement, ParameterBinder binder) {
+        StatementTimer timer = StatementTimer.start(metricsListener, getClass().getSimpleName(), operation);
         try {
-            ResultSet rs = findAllPS.executeQuery();
-            while (rs.next()) {
-                entities.add(extractEntityFromResultSet(rs));
+            // the stream outlives this call, so it gets a connection of its own unless a transaction is running
+            ConnectionSource source = sourceFor(operation);
+            Connection bound = source.current();
+            Connection connection = bound != null ? bound : source.open();
+            Runnable closeConnection = () -> {
+                if (bound == null) {
+                    closeConnection(source, connection);
+                }
+            };
+            try {
+                PreparedStatement ps = cachedStatement
+                        ? source.prepare(connection, sql, Statement.NO_GENERATED_KEYS)
+                        : connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                timer.prepared();
+                try {
+                    ps.setFetchSize(fetchSize);
+                    binder.bind(ps);
+                    ResultSet rs = ps.executeQuery();
+                    timer.executed();
+                    return StreamSupport.stream(new ResultSetSpliterator(rs, sql, timer), false)
+                            .onClose(() -> timer.finish(false))
+                            .onClose(() -> close(cachedStatement ? rs : ps))
+                            .onClose(closeConnection);
+                } catch (SQLException e) {
+                    if (!cachedStatement) {
+                        ps.close();
+                    }
+                    throw e;
+                }
+            } catch (SQLException | RuntimeException e) {
+                closeConnection.run();
+                throw e;
             }
         } catch (SQLException e) {
-            throw new DataException("Unable to create prepared statement for CrudRepository", e);
+            timer.finish(true);
+            throw new DataException("Unable to stream entities", e);
+        } catch (RuntimeException e) {
+            timer.finish(true);
+            throw e;
         }
-        return entities;
     }
 
-    public Long count() {
-        long count = 0;
+    // closing a statement closes its result set as well
+    private static void close(AutoCloseable resource) {
         try {
-            ResultSet rs = countPS.executeQuery();
-            if (rs.next()) {
-                count = rs.getLong(1);
-            }
+            resource.close();
+        } catch (Exception e) {
+            throw new DataException("Unable to close streaming statement", e);
+        }
+    }
+
+    private static void closeConnection(ConnectionSource source, Connection connection) {
+        try {
+            source.close(connection);
         } catch (SQLException e) {
-            throw new DataException("Unable to create prepared statement for CrudRepository", e);
+            throw new DataException("Unable to close streaming connection", e);
         }
-        return count;
+    }
+
+    public Long count() {
+        return withConnection(CrudOperation.COUNT, "Unable to create prepared statement for CrudRepository", (connection, timer) -> {
+            long count = 0;
+            PreparedStatement countPS = prepare(connection, countSql);
+            timer.prepared();
+            try (ResultSet rs = countPS.executeQuery()) {
+                timer.executed();
+                timer.rows(1);
+                if (rs.next()) {
+                    count = rs.getLong(1);
+                }
+            }
+            return count;
+        });
     }
 
     // delete more one entity only
     public void delete(T entity) {
-        try {
+        withConnection(CrudOperation.DELETE_ONE, "Unable to create prepared statement for CrudRepository", (connection, timer) -> {
+            PreparedStatement deletePS = prepare(connection, deleteSql);
+            timer.prepared();
             deletePS.setLong(1, getIdByAnnotation(entity));
-            int affectedRecordCount = deletePS.executeUpdate();
-            System.out.println(affectedRecordCount);
-        } catch (SQLException e) {
-            throw new DataException("Unable to create prepared statement for CrudRepository", e);
-        }
+            timer.rows(deletePS.executeUpdate());
+            timer.executed();
+            invalidate(entity);
+            return null;
+        });
     }
 
     // delete more than one entity at a time
     public void delete(T... entities) {
-        try {
-            String ids = Arrays.stream(entities).map(this::getIdByAnnotation).map(String::valueOf).collect(Collectors.joining(","));
-            deleteManyPS = connection.prepareStatement(getSqlByAnnotation(CrudOperation.DELETE_MANY, this::getDeleteInSql).replace(":ids", ids));
-            int affectedRecordCount = deleteManyPS.executeUpdate();
-            System.out.println(affectedRecordCount);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        deleteByIds(Arrays.stream(entities).mapToLong(this::getIdByAnnotation).toArray());
     }
 
-    private void setIdByAnnotation(Long id, T entity) {
-        Arrays.stream(entity.getClass().getDeclaredFields())
-                .filter(f -> f.isAnnotationPresent(Id.class))
-                .forEach(f -> {
-                    f.setAccessible(true);
-                    try {
-                        f.set(entity, id);
-                    } catch (IllegalAccessException e) {
-                        throw new RuntimeException("Unable to set ID field value.");
+    /**
+     * Deletes the entities with the given IDs using the DELETE_MANY SQL. The IDs are split into chunks whose
+     * "IN (?,?,...)" lists have one of a few fixed sizes, so MySQL only ever sees a handful of statement shapes
+     * and every shape is prepared once per connection.
+     */
+    public void deleteByIds(long... ids) {
+        withConnection(CrudOperation.DELETE_MANY, "Unable to delete entities", (connection, timer) -> {
+            forEachInListChunk(ids, (size, chunks) -> {
+                PreparedStatement deleteManyPS = prepare(connection, inListSql(deleteManySql, size));
+                timer.prepared();
+                try {
+                    for (long[] chunk : chunks) {
+                        bindInList(deleteManyPS, chunk);
+                        deleteManyPS.addBatch();
                     }
-                });
+                    timer.rows(affectedRows(deleteManyPS.executeBatch()));
+                } catch (SQLException | RuntimeException e) {
+                    clearBatch(deleteManyPS, e);
+                    throw e;
+                }
+                timer.executed();
+            });
+            Arrays.stream(ids).forEach(this::invalidate);
+            return null;
+        });
+    }
+
+    // delete all entities using JDBC batches
+    public void deleteAll(Collection<T> entities) {
+        withConnection(CrudOperation.DELETE_ONE, "Unable to delete entities in batch", (connection, timer) -> {
+            PreparedStatement deletePS = prepare(connection, deleteSql);
+            timer.prepared();
+            for (List<T> chunk : chunk(new ArrayList<>(entities))) {
+                try {
+                    for (T entity : chunk) {
+                        deletePS.setLong(1, getIdByAnnotation(entity));
+                        deletePS.addBatch();
+                    }
+                    timer.rows(affectedRows(deletePS.executeBatch()));
+                } catch (SQLException | RuntimeException e) {
+                    clearBatch(deletePS, e);
+                    throw e;
+                }
+                timer.executed();
+                chunk.forEach(this::invalidate);
+            }
+            return null;
+        });
+    }
+
+    private void setIdByAnnotation(Long id, T entity) {
+        EntityMetadata.of(entity.getClass()).setId(entity, id);
     }
 
 
     private Long getIdByAnnotation(T entity) {
-        return Arrays.stream(entity.getClass().getDeclaredFields())
-                .filter(f -> f.isAnnotationPresent(Id.class))
-                .map(f -> {
-                    f.setAccessible(true);
-                    Long id = null;
-                    try {
-                        id = (long) f.get(entity);
-                    } catch (IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
-                    return id;
-                })
-                .findFirst().orElseThrow(() -> new RuntimeException("No ID annotated field found")); // this should be replaced with a custom exception
+        return EntityMetadata.of(entity.getClass()).getId(entity);
     }
 
+    // skips the round trip if the entity has no changes to write
     public void update(T entity) {
+        withConnection(CrudOperation.UPDATE, "Unable to create prepared statement for CrudRepository", (connection, timer) -> {
+            PreparedStatement updatePS = prepareUpdate(connection, entity);
+            timer.prepared();
+            if (updatePS != null) {
+                timer.rows(updatePS.executeUpdate());
+                timer.executed();
+                afterWrite(entity);
+            }
+            return null;
+        });
+    }
+
+    // update all entities using JDBC batches
+    public void updateAll(Collection<T> entities) {
+        withConnection(CrudOperation.UPDATE, "Unable to update entities in batch", (connection, timer) -> {
+            for (List<T> chunk : chunk(new ArrayList<>(entities))) {
+                // entities that changed different columns are batched on different statements
+                Set<PreparedStatement> batches = new LinkedHashSet<>();
+                List<T> updated = new ArrayList<>(chunk.size());
+                try {
+                    for (T entity : chunk) {
+                        PreparedStatement updatePS = prepareUpdate(connection, entity);
+                        if (updatePS != null) {
+                            updatePS.addBatch();
+                            batches.add(updatePS);
+                            updated.add(entity);
+                        }
+                    }
+                    timer.prepared();
+                    for (PreparedStatement updatePS : batches) {
+                        timer.rows(affectedRows(updatePS.executeBatch()));
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    batches.forEach(updatePS -> clearBatch(updatePS, e));
+                    throw e;
+                }
+                timer.executed();
+                updated.forEach(this::afterWrite);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Prepares the statement that updates the entity's row and binds the entity to it, or returns null when
+     * there is nothing to write. By default all columns of the update SQL are written, and the entity's ID
+     * binds to the fifth parameter.
+     */
+    PreparedStatement prepareUpdate(Connection connection, T entity) throws SQLException {
+        PreparedStatement updatePS = prepare(connection, updateSql);
+        mapForUpdate(entity, updatePS);
+        updatePS.setLong(5, getIdByAnnotation(entity));
+        return updatePS;
+    }
+
+    // runs the work in one transaction, see ConnectionSource#inTransaction
+    public <R> R inTransaction(Supplier<R> work) {
+        return connectionSource.inTransaction(work);
+    }
+
+    // runs the work's reads on the primary instead of the read source, e.g. to read a row right after writing it
+    public <R> R readFromPrimary(Supplier<R> work) {
+        return connectionSource.withBoundConnection(work);
+    }
+
+    private ConnectionSource sourceFor(CrudOperation operation) {
+        if (readSource != connectionSource && operation.isRead() && connectionSource.current() == null) {
+            return readSource;
+        }
+        return connectionSource;
+    }
+
+    // the source the connection of the running operation came from
+    private ConnectionSource sourceOf(Connection connection) {
+        return readSource != connectionSource && readSource.current() == connection ? readSource : connectionSource;
+    }
+
+    /**
+     * Runs the work on the connection bound to this thread, borrowing one from the source if there is none,
+     * and wraps SQL errors into a DataException with the given message. The work reports its phases and rows
+     * to the timer, which passes them on to the metrics listener.
+     */
+    <R> R withConnection(CrudOperation operation, String errorMessage, SqlWork<R> work) {
+        StatementTimer timer = StatementTimer.start(metricsListener, getClass().getSimpleName(), operation);
+        boolean failed = true;
         try {
-            mapForUpdate(entity, updatePS);
-            updatePS.setLong(5, getIdByAnnotation(entity));
-            updatePS.executeUpdate();
+            ConnectionSource source = sourceFor(operation);
+            Connection connection = source.acquire();
+            try {
+                R result = work.run(connection, timer);
+                failed = false;
+                return result;
+            } finally {
+                source.release();
+            }
         } catch (SQLException e) {
-            throw new DataException("Unable to create prepared statement for CrudRepository", e);
+            throw new DataException(errorMessage, e);
+        } finally {
+            timer.finish(failed);
         }
     }
 
-    // go find the sql that we're looking for via the annotation, but if it's not there, then just fallback to the supplied sql method, the 2nd parameter
-    private String getSqlByAnnotation(CrudOperation operationType, Supplier<String> sqlGetter) {
-        Stream<SQL> multiSqlStream = Arrays.stream(this.getClass().getDeclaredMethods())
-                .filter(m -> m.isAnnotationPresent(MultiSQL.class))
-                .map(m -> m.getAnnotation(MultiSQL.class))
-                .flatMap((msql -> Arrays.stream(msql.value())));
+    // the sum of batch update counts, statements the driver reports without a count are left out
+    static long affectedRows(int[] updateCounts) {
+        long rows = 0;
+        for (int count : updateCounts) {
+            if (count > 0) {
+                rows += count;
+            }
+        }
+        return rows;
+    }
 
-        Stream<SQL> sqlStream = Arrays.stream(this.getClass().getDeclaredMethods())
-                .filter(m -> m.isAnnotationPresent(SQL.class))
-                .map(m -> m.getAnnotation(SQL.class));
+    PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        return sourceOf(connection).prepare(connection, sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    PreparedStatement prepare(Connection connection, String sql, int autoGeneratedKeys) throws SQLException {
+        return sourceOf(connection).prepare(connection, sql, autoGeneratedKeys);
+    }
 
-        return Stream.concat(multiSqlStream, sqlStream)
-                .filter(a -> a.operationType().equals(operationType))
-                .map(SQL::value)
-                .findFirst().orElseGet(sqlGetter);
+    public EntityCache<T> getCache() {
+        return cache;
+    }
+
+    /**
+     * Caches findById results, null turns caching off. The cache holds copies, and only rows read from the primary
+     * outside of transactions, as rows read in one may still be rolled back.
+     */
+    public void setCache(EntityCache<T> cache) {
+        this.cache = cache;
+    }
+
+    long cacheStamp() {
+        return cache == null ? 0 : cache.stamp();
+    }
+
+    // whether rows read on the connection may be cached, a replica may lag behind the invalidations of our writes
+    boolean isCacheable(Connection connection) throws SQLException {
+        return connection.getAutoCommit() && sourceOf(connection) == connectionSource;
+    }
+
+    private void afterWrite(T entity) {
+        invalidate(entity);
+        written(entity);
+    }
+
+    private void invalidate(T entity) {
+        if (cache != null) {
+            Long id = getIdByAnnotation(entity);
+            if (id != null) {
+                invalidate(id);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the ID now and, inside a transaction, once more after it ends. Until then, reads on other
+     * connections still see the old row and may cache it, as their stamps are taken after the first invalidation.
+     */
+    private void invalidate(long id) {
+        EntityCache<T> current = cache;
+        if (current != null) {
+            current.invalidate(id);
+            connectionSource.afterTransaction(() -> current.invalidate(id));
+        }
+    }
+
+    public RepositoryMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    // RepositoryMetricsListener.NONE turns the measurements off
+    public void setMetricsListener(RepositoryMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    // Integer.MIN_VALUE streams row by row, positive values need "useCursorFetch=true" in the MySQL URL
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Splits the IDs into chunks of the largest IN list size and pads the remainder up to the next size by
+     * repeating its last ID. Chunks of the same size are handed over together, so they can share one batch.
+     */
+    static void forEachInListChunk(long[] ids, InListWork work) throws SQLException {
+        int maxSize = IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+        int fullChunks = ids.length / maxSize;
+        if (fullChunks > 0) {
+            List<long[]> chunks = new ArrayList<>(fullChunks);
+            for (int i = 0; i < fullChunks; i++) {
+                chunks.add(Arrays.copyOfRange(ids, i * maxSize, (i + 1) * maxSize));
+            }
+            work.run(maxSize, chunks);
+        }
+        int remaining = ids.length - fullChunks * maxSize;
+        if (remaining > 0) {
+            int size = inListSize(remaining);
+            long[] chunk = Arrays.copyOfRange(ids, fullChunks * maxSize, fullChunks * maxSize + size);
+            Arrays.fill(chunk, remaining, size, ids[ids.length - 1]);
+            work.run(size, List.of(chunk));
+        }
+    }
+
+    // the smallest IN list size that holds the given number of values, at most the largest one
+    static int inListSize(int count) {
+        return Arrays.stream(IN_LIST_SIZES).filter(s -> s >= count).findFirst().orElse(IN_LIST_SIZES[IN_LIST_SIZES.length - 1]);
+    }
+
+    // replaces the '(:ids)' named parameter with an IN list of the given size
+    static String inListSql(String sql, int size) {
+        return sql.replace(":ids", String.join(",", Collections.nCopies(size, "?")));
+    }
+
+    private static void bindInList(PreparedStatement ps, long[] ids) throws SQLException {
+        for (int i = 0; i < ids.length; i++) {
+            ps.setLong(i + 1, ids[i]);
+        }
+    }
+
+    List<List<T>> chunk(List<T> entities) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < entities.size(); i += batchSize) {
+            chunks.add(entities.subList(i, Math.min(i + batchSize, entities.size())));
+        }
+        return chunks;
+    }
+
+    // go find the sql that we're looking for via the annotation, but if it's not there, then just fallback to the supplied sql method, the 2nd parameter
+    private String getSqlByAnnotation(CrudOperation operationType, Supplier<String> sqlGetter) {
+        String sql = SqlRegistry.of(this.getClass()).get(operationType);
+        return sql != null ? sql : sqlGetter.get();
     }
 
     /**
@@ -200,10 +900,37 @@ abstract class CRUDRepository<T> {
         throw new RuntimeException("SQL not defined");
     }
 
+    /**
+     * @return should return a SQL string like:
+     * "SELECT ... FROM PEOPLE WHERE ID > ? ORDER BY ID LIMIT ?"
+     * The first parameter binds to the last ID of the previous page, the second one to the page size.
+     */
+    protected String getFindPageSql() {
+        throw new RuntimeException("SQL not defined");
+    }
+
+    /**
+     * @return should return a SQL string like:
+     * "SELECT ... FROM PEOPLE WHERE ID IN (:ids)"
+     * Be sure to include the '(:ids)' named parameter & call it 'ids'
+     */
+    protected String getFindByIdsSql() {
+        throw new RuntimeException("SQL not defined");
+    }
+
     protected String getUpdateSql() {
         throw new RuntimeException("SQL not defined");
     }
 
+    /**
+     * @return should return a SQL string like:
+     * "INSERT INTO PEOPLE (ID, ...) VALUES (?, ...) ON DUPLICATE KEY UPDATE ..."
+     * The ID binds to the first parameter.
+     */
+    protected String getUpsertSql() {
+        throw new RuntimeException("SQL not defined");
+    }
+
     /**
      * @return Returns a String that represents the SQL needed to retrieve one entity.
      * The SQL must contain one SQL parameter, i.e. "?", that will bind to the entity's ID.
@@ -216,12 +943,92 @@ abstract class CRUDRepository<T> {
         throw new RuntimeException("SQL not defined");
     }
 
-    abstract T extractEntityFromResultSet(ResultSet rs) throws SQLException;
+    // the properties projections can select from
+    ProjectionTable getProjectionTable() {
+        throw new RuntimeException("Projections not defined");
+    }
+
+    @FunctionalInterface
+    interface SqlWork<R> {
+        R run(Connection connection, StatementTimer timer) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface InListWork {
+        void run(int size, List<long[]> chunks) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface ParameterBinder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    private class ResultSetSpliterator extends Spliterators.AbstractSpliterator<T> {
+        private final ResultSet rs;
+        private final String sql;
+        private final StatementTimer timer;
+
+        ResultSetSpliterator(ResultSet rs, String sql, StatementTimer timer) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.rs = rs;
+            this.sql = sql;
+            this.timer = timer;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            try {
+                if (!rs.next()) {
+                    return false;
+                }
+                T entity = extractEntityFromResultSet(rs, sql);
+                timer.rows(1);
+                action.accept(entity);
+                return true;
+            } catch (SQLException e) {
+                throw new DataException("Unable to read next streamed entity", e);
+            }
+        }
+    }
+
+    /**
+     * Called with every chunk of {@link #saveAll(Collection)} before its rows are bound, so that dependent
+     * entities (e.g. addresses) can be saved in a batch of their own first.
+     */
+    void prepareForSaveAll(List<T> entities) throws SQLException {
+    }
+
+    // like prepareForSaveAll, called with the entities of every upsert batch that have an ID
+    void prepareForUpsertAll(List<T> entities) throws SQLException {
+    }
+
+    // called once the entity matches its row after a save or update
+    void written(T entity) {
+    }
+
+    // the copy of a mutable entity that the cache holds or hands out, so that callers never share one instance
+    T copyOf(T entity) {
+        return entity;
+    }
+
+    // like cacheStamp, for the caches of entities loaded along with this repository's, see cacheDependents
+    long dependentsCacheStamp() {
+        return 0;
+    }
+
+    // caches the entities that were loaded along with a cached one, e.g. a person's home address
+    void cacheDependents(T entity, long stamp) {
+    }
+
+    // maps the current row of the result set of the given SQL
+    abstract T extractEntityFromResultSet(ResultSet rs, String sql) throws SQLException;
 
 
     abstract void mapForSave(T entity, PreparedStatement ps) throws SQLException;
 
     abstract void mapForUpdate(T entity, PreparedStatement ps) throws SQLException;
 
+    abstract void mapForUpsert(T entity, PreparedStatement ps) throws SQLException;
+
 
 }
@@ -0,0 +1,155 @@
+package ch.finecloud.peopledb.repository;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Collects the IDs requested by many threads within a short window and loads them with one batched lookup,
+ * in the style of a DataLoader. Each ID is loaded once per batch however often it was requested. The batches are
+ * loaded on their own executor, so a slow lookup does not hold up the windows of the next batches.
+ */
+public class CoalescingLoader<T> implements AutoCloseable {
+
+    private final Function<List<Long>, List<Optional<T>>> batchLoader;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final Executor loadExecutor;
+    // the executor is shut down on close if the loader created it
+    private final ExecutorService ownedExecutor;
+    private Batch pending = new Batch();
+    private boolean closed;
+
+    /**
+     * @param batchLoader  loads the given IDs and returns one result per ID in the same order
+     * @param window       how long the first request of a batch waits for others to join it
+     * @param maxBatchSize a batch with this many IDs is loaded right away
+     */
+    public CoalescingLoader(Function<List<Long>, List<Optional<T>>> batchLoader, Duration window, int maxBatchSize) {
+        this(batchLoader, window, maxBatchSize, null);
+    }
+
+    // like the other constructor, the batches are loaded on the given executor, e.g. one sized like the connection pool
+    public CoalescingLoader(Function<List<Long>, List<Optional<T>>> batchLoader, Duration window, int maxBatchSize,
+                            Executor loadExecutor) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchLoader = batchLoader;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "coalescing-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ownedExecutor = loadExecutor != null ? null : Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "coalescing-loader-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.loadExecutor = loadExecutor != null ? loadExecutor : ownedExecutor;
+    }
+
+    public CompletableFuture<Optional<T>> load(Long id) {
+        Objects.requireNonNull(id, "id");
+        Batch full = null;
+        CompletableFuture<Optional<T>> future;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Coalescing loader is closed");
+            }
+            future = pending.futures.get(id);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                pending.futures.put(id, future);
+                if (pending.futures.size() == 1) {
+                    Batch batch = pending;
+                    scheduler.schedule(() -> dispatch(batch), windowNanos, TimeUnit.NANOSECONDS);
+                }
+                if (pending.futures.size() >= maxBatchSize) {
+                    full = pending;
+                    pending = new Batch();
+                }
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+        return future;
+    }
+
+    // blocking variant of load
+    public Optional<T> findById(Long id) {
+        return load(id).join();
+    }
+
+    private void dispatch(Batch batch) {
+        synchronized (this) {
+            // a full batch is dispatched early and then once more by its timer
+            if (batch.dispatched) {
+                return;
+            }
+            batch.dispatched = true;
+            if (batch == pending) {
+                pending = new Batch();
+            }
+        }
+        try {
+            loadExecutor.execute(() -> loadBatch(batch));
+        } catch (RejectedExecutionException e) {
+            batch.futures.values().forEach(f -> f.completeExceptionally(e));
+        }
+    }
+
+    private void loadBatch(Batch batch) {
+        List<Long> ids = new ArrayList<>(batch.futures.keySet());
+        try {
+            List<Optional<T>> results = batchLoader.apply(ids);
+            for (int i = 0; i < ids.size(); i++) {
+                batch.futures.get(ids.get(i)).complete(results.get(i));
+            }
+        } catch (Throwable e) {
+            // no caller may wait forever, whatever went wrong
+            batch.futures.values().forEach(f -> f.completeExceptionally(e));
+        }
+    }
+
+    // rejects further loads and loads the pending batch without waiting for its window
+    @Override
+    public void close() {
+        Batch last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = pending;
+        }
+        scheduler.shutdownNow();
+        if (!last.futures.isEmpty()) {
+            dispatch(last);
+        }
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private class Batch {
+        private final Map<Long, CompletableFuture<Optional<T>>> futures = new LinkedHashMap<>();
+        private boolean dispatched;
+    }
+}
@@ -0,0 +1,109 @@
+package ch.finecloud.peopledb.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A column of an entity's find query that criteria can filter on, see {@link PersonColumns}.
+ *
+ * @param <E> the entity whose repository the criteria can be passed to
+ * @param <V> the type of the values the column is compared with
+ */
+public final class Column<E, V> {
+
+    private final String name;
+    private final String sql;
+    private final ValueBinder<V> binder;
+
+    Column(String name, String sql, ValueBinder<V> binder) {
+        this.name = name;
+        this.sql = sql;
+        this.binder = binder;
+    }
+
+    // the column name as reported by Criteria#columns
+    public String getName() {
+        return name;
+    }
+
+    public Criteria<E> eq(V value) {
+        return compare("=", value);
+    }
+
+    public Criteria<E> ne(V value) {
+        return compare("<>", value);
+    }
+
+    public Criteria<E> lt(V value) {
+        return compare("<", value);
+    }
+
+    public Criteria<E> le(V value) {
+        return compare("<=", value);
+    }
+
+    public Criteria<E> gt(V value) {
+        return compare(">", value);
+    }
+
+    public Criteria<E> ge(V value) {
+        return compare(">=", value);
+    }
+
+    // both bounds are inclusive
+    public Criteria<E> between(V from, V to) {
+        return new Criteria<>(sql + " BETWEEN ? AND ?", List.of(bound(from), bound(to)), name);
+    }
+
+    /**
+     * The list is padded to one of the IN list sizes of the repositories by repeating its last value, and split
+     * into several lists joined by OR above the largest size, so that lists of similar length share one shape.
+     */
+    public Criteria<E> in(Collection<V> values) {
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("IN list of " + name + " must not be empty");
+        }
+        List<V> list = new ArrayList<>(values);
+        int maxSize = CRUDRepository.IN_LIST_SIZES[CRUDRepository.IN_LIST_SIZES.length - 1];
+        List<String> inLists = new ArrayList<>();
+        List<Criteria.Parameter> parameters = new ArrayList<>();
+        for (int from = 0; from < list.size(); from += maxSize) {
+            List<V> chunk = list.subList(from, Math.min(from + maxSize, list.size()));
+            int size = CRUDRepository.inListSize(chunk.size());
+            inLists.add(sql + " IN (" + String.join(",", Collections.nCopies(size, "?")) + ")");
+            for (int i = 0; i < size; i++) {
+                parameters.add(bound(chunk.get(Math.min(i, chunk.size() - 1))));
+            }
+        }
+        String shape = inLists.size() == 1 ? inLists.get(0) : "(" + String.join(" OR ", inLists) + ")";
+        return new Criteria<>(shape, parameters, name);
+    }
+
+    public Criteria<E> isNull() {
+        return new Criteria<>(sql + " IS NULL", List.of(), name);
+    }
+
+    public Criteria<E> isNotNull() {
+        return new Criteria<>(sql + " IS NOT NULL", List.of(), name);
+    }
+
+    private Criteria<E> compare(String operator, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Compare " + name + " with null through isNull or isNotNull");
+        }
+        return new Criteria<>(sql + operator + "?", List.of(bound(value)), name);
+    }
+
+    private Criteria.Parameter bound(V value) {
+        return (ps, index) -> binder.bind(ps, index, value);
+    }
+
+    @FunctionalInterface
+    interface ValueBinder<V> {
+        void bind(PreparedStatement ps, int index, V value) throws SQLException;
+    }
+}
@@ -0,0 +1,54 @@
+package ch.finecloud.peopledb.repository;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves column labels to their indexes once per SQL, so rows can be read by index instead of having the driver
+ * search the labels on every getter call. The indexes are returned in the order of the labels.
+ */
+final class ColumnIndexes {
+
+    // more than a repository's finders, in-list sizes and criteria shapes, see CRUDRepository#MAX_CRITERIA_SHAPES
+    static final int MAX_RESOLVED = 1024;
+
+    private final String[] labels;
+    private final Map<String, int[]> resolved = new ConcurrentHashMap<>();
+
+    ColumnIndexes(String... labels) {
+        this.labels = labels;
+    }
+
+    // the indexes in the result set of the given SQL, which has the same columns every time it runs
+    int[] of(String sql, ResultSet rs) throws SQLException {
+        int[] indexes = resolved.get(sql);
+        if (indexes == null) {
+            indexes = resolve(rs.getMetaData());
+            if (resolved.size() >= MAX_RESOLVED) {
+                // only when criteria keep making new shapes, resolving again is cheap
+                resolved.clear();
+            }
+            resolved.put(sql, indexes);
+        }
+        return indexes;
+    }
+
+    private int[] resolve(ResultSetMetaData metaData) throws SQLException {
+        int[] indexes = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            for (int column = metaData.getColumnCount(); column > 0; column--) {
+                // the first column wins if a label occurs twice, just like with getString(label)
+                if (labels[i].equalsIgnoreCase(metaData.getColumnLabel(column))) {
+                    indexes[i] = column;
+                }
+            }
+            if (indexes[i] == 0) {
+                throw new SQLException("Column not found: " + labels[i]);
+            }
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,286 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.exception.DataException;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Hands out the connection a repository operation runs on. A connection borrowed by a thread stays bound to
+ * that thread until its outermost operation releases it, so nested operations (e.g. saving a person's address)
+ * and transactions run on the same connection. Prepared statements are cached per physical connection, up to
+ * {@link #MAX_CACHED_STATEMENTS} of them, the least recently used one is closed when another one is prepared.
+ */
+public abstract class ConnectionSource {
+
+    public static final int MAX_CACHED_STATEMENTS = 256;
+
+    private final ThreadLocal<Binding> binding = new ThreadLocal<>();
+    private final Map<Connection, Map<String, PreparedStatement>> statements = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * A source that always uses the given connection. Repositories on such a source must not be shared
+     * between threads.
+     */
+    public static ConnectionSource of(Connection connection) {
+        return new SingleConnectionSource(connection);
+    }
+
+    /**
+     * A source that borrows a connection from the pool for every operation or transaction, so that one
+     * repository can be used by many threads at once. Statements are prepared on the pool's underlying connection,
+     * so that they stay cached across borrows, and the pool does not track them: they are not closed when the
+     * connection is returned, and executing them does not mark its transaction as dirty. A connection that is
+     * returned with auto-commit off is therefore rolled back here, as the pool would do for an abandoned transaction.
+     */
+    public static ConnectionSource of(DataSource dataSource) {
+        return new DataSourceConnectionSource(dataSource);
+    }
+
+    /**
+     * Runs the work in one transaction on one connection, committing when it returns and rolling back when it
+     * throws. Repository operations called by the work on this thread all join the transaction, and their cache
+     * invalidations are repeated once it ended.
+     */
+    public <R> R inTransaction(Supplier<R> work) {
+        try {
+            Connection connection = acquire();
+            Binding current = binding.get();
+            List<Runnable> outerHooks = current.afterTransaction;
+            current.afterTransaction = new ArrayList<>();
+            try {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    R result = work.get();
+                    connection.commit();
+                    return result;
+                } catch (RuntimeException | Error e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                List<Runnable> hooks = current.afterTransaction;
+                current.afterTransaction = outerHooks;
+                release();
+                hooks.forEach(Runnable::run);
+            }
+        } catch (SQLException e) {
+            throw new DataException("Unable to run transaction", e);
+        }
+    }
+
+    /**
+     * Runs the work with one connection bound to this thread but without a transaction, so that the repository
+     * operations it calls, reads included, all use this source. See CRUDRepository#readFromPrimary.
+     */
+    public <R> R withBoundConnection(Supplier<R> work) {
+        try {
+            acquire();
+            try {
+                return work.get();
+            } finally {
+                release();
+            }
+        } catch (SQLException e) {
+            throw new DataException("Unable to bind connection", e);
+        }
+    }
+
+    /**
+     * Runs the work on the connection bound to this thread, e.g. by {@link #inTransaction(Supplier)}, or else on one
+     * borrowed for the work alone, like a repository's streams. Lets code outside the repositories, e.g. an export,
+     * see the rows of the running transaction.
+     */
+    public <R, E extends Exception> R withConnection(ConnectionWork<R, E> work) throws SQLException, E {
+        Connection bound = current();
+        Connection connection = bound != null ? bound : open();
+        try {
+            return work.apply(connection);
+        } finally {
+            if (bound == null) {
+                close(connection);
+            }
+        }
+    }
+
+    // runs the hook once the transaction of this thread committed or rolled back, does nothing outside of one
+    void afterTransaction(Runnable hook) {
+        Binding current = binding.get();
+        if (current != null && current.afterTransaction != null) {
+            current.afterTransaction.add(hook);
+        }
+    }
+
+    // whether repositories on this source may be used by several threads at once
+    abstract boolean isThreadSafe();
+
+    abstract Connection open() throws SQLException;
+
+    abstract void close(Connection connection) throws SQLException;
+
+    // the connection statements get cached on, pools usually hand out a new proxy for each borrow
+    abstract Connection physical(Connection connection) throws SQLException;
+
+    Connection acquire() throws SQLException {
+        Binding current = binding.get();
+        if (current == null) {
+            current = new Binding(open());
+            binding.set(current);
+        }
+        current.depth++;
+        return current.connection;
+    }
+
+    void release() throws SQLException {
+        Binding current = binding.get();
+        if (current != null && --current.depth == 0) {
+            binding.remove();
+            close(current.connection);
+        }
+    }
+
+    // the connection bound to this thread, or null outside of any operation or transaction
+    Connection current() {
+        Binding current = binding.get();
+        return current == null ? null : current.connection;
+    }
+
+    PreparedStatement prepare(Connection connection, String sql, int autoGeneratedKeys) throws SQLException {
+        Connection physical = physical(connection);
+        Map<String, PreparedStatement> cache = statements.get(physical);
+        if (cache == null) {
+            synchronized (statements) {
+                statements.keySet().removeIf(ConnectionSource::isClosed);
+                cache = statements.computeIfAbsent(physical, c -> new StatementCache());
+            }
+        }
+        // a connection is only used by one thread at a time, so its own cache needs no locking
+        String key = autoGeneratedKeys + sql;
+        PreparedStatement ps = cache.get(key);
+        if (ps == null || ps.isClosed()) {
+            ps = physical.prepareStatement(sql, autoGeneratedKeys);
+            cache.put(key, ps);
+        }
+        return ps;
+    }
+
+    private static boolean isClosed(Connection connection) {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    @FunctionalInterface
+    public interface ConnectionWork<R, E extends Exception> {
+        R apply(Connection connection) throws SQLException, E;
+    }
+
+    private static final class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+        private static final long serialVersionUID = 1L;
+
+        private StatementCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= MAX_CACHED_STATEMENTS) {
+                return false;
+            }
+            try {
+                eldest.getValue().close();
+            } catch (SQLException e) {
+                // the statement is dropped anyway
+            }
+            return true;
+        }
+    }
+
+    private static final class Binding {
+        private final Connection connection;
+        private int depth;
+        // set while inTransaction runs
+        private List<Runnable> afterTransaction;
+
+        private Binding(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private static final class SingleConnectionSource extends ConnectionSource {
+        private final Connection connection;
+
+        private SingleConnectionSource(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        boolean isThreadSafe() {
+            return false;
+        }
+
+        @Override
+        Connection open() {
+            return connection;
+        }
+
+        @Override
+        void close(Connection connection) {
+            // the connection belongs to the caller
+        }
+
+        @Override
+        Connection physical(Connection connection) {
+            return connection;
+        }
+    }
+
+    private static final class DataSourceConnectionSource extends ConnectionSource {
+        private final DataSource dataSource;
+
+        private DataSourceConnectionSource(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        Connection open() throws SQLException {
+            return dataSource.getConnection();
+        }
+
+        @Override
+        void close(Connection connection) throws SQLException {
+            try {
+                // e.g. a pool configured with autoCommit=false, inTransaction commits and restores auto-commit itself
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Override
+        Connection physical(Connection connection) throws SQLException {
+            return connection.isWrapperFor(Connection.class) ? connection.unwrap(Connection.class) : connection;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ch.finecloud.peopledb.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable filter of a find query, built from {@link Column} comparisons, e.g.
+ * {@code where(LAST_NAME.eq("Smith")).and(SALARY.between(low, high))}. Its SQL only contains placeholders, so
+ * criteria that differ in their values alone share one query shape and thus one prepared statement.
+ *
+ * @param <E> the entity whose repository the criteria can be passed to
+ */
+public final class Criteria<E> {
+
+    private final String shape;
+    private final List<Parameter> parameters;
+    private final Set<String> columns;
+
+    Criteria(String shape, List<Parameter> parameters, String column) {
+        this(shape, parameters, Set.of(column));
+    }
+
+    private Criteria(String shape, List<Parameter> parameters, Set<String> columns) {
+        this.shape = shape;
+        this.parameters = parameters;
+        this.columns = columns;
+    }
+
+    public static <E> Criteria<E> where(Criteria<E> criteria) {
+        return criteria;
+    }
+
+    public Criteria<E> and(Criteria<E> other) {
+        return combine(shape + " AND " + other.shape, other);
+    }
+
+    public Criteria<E> or(Criteria<E> other) {
+        return combine("(" + shape + " OR " + other.shape + ")", other);
+    }
+
+    /**
+     * @return the WHERE clause with placeholders for the values, the key of the statement cache
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * @return the names of the columns the criteria filter on, the candidates for an index
+     */
+    public Set<String> getColumns() {
+        return columns;
+    }
+
+    void bind(PreparedStatement ps) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            parameters.get(i).bind(ps, i + 1);
+        }
+    }
+
+    private Criteria<E> combine(String combinedShape, Criteria<E> other) {
+        List<Parameter> combinedParameters = new ArrayList<>(parameters);
+        combinedParameters.addAll(other.parameters);
+        Set<String> combinedColumns = new LinkedHashSet<>(columns);
+        combinedColumns.addAll(other.columns);
+        return new Criteria<>(combinedShape, combinedParameters, Collections.unmodifiableSet(combinedColumns));
+    }
+
+    @Override
+    public String toString() {
+        return shape;
+    }
+
+    @FunctionalInterface
+    interface Parameter {
+        void bind(PreparedStatement ps, int index) throws SQLException;
+    }
+}
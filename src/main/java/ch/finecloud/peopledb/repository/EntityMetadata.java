@@ -0,0 +1,63 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.annotation.Id;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+/**
+ * The @Id accessors of an entity class, resolved once per class and then shared by all repositories.
+ * The setter is an unreflected MethodHandle, which can also write final fields such as Address's ID.
+ */
+final class EntityMetadata {
+
+    private static final ClassValue<EntityMetadata> REGISTRY = new ClassValue<>() {
+        @Override
+        protected EntityMetadata computeValue(Class<?> type) {
+            return new EntityMetadata(type);
+        }
+    };
+
+    private final Class<?> entityClass;
+    private final MethodHandle idGetter;
+    private final MethodHandle idSetter;
+
+    private EntityMetadata(Class<?> entityClass) {
+        this.entityClass = entityClass;
+        Field idField = Arrays.stream(entityClass.getDeclaredFields())
+                .filter(f -> f.isAnnotationPresent(Id.class))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No ID annotated field found in " + entityClass.getName()));
+        try {
+            idField.setAccessible(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            idGetter = lookup.unreflectGetter(idField).asType(MethodType.methodType(Object.class, Object.class));
+            idSetter = lookup.unreflectSetter(idField).asType(MethodType.methodType(void.class, Object.class, Object.class));
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new IllegalStateException("Unable to access ID field of " + entityClass.getName(), e);
+        }
+    }
+
+    static EntityMetadata of(Class<?> entityClass) {
+        return REGISTRY.get(entityClass);
+    }
+
+    Long getId(Object entity) {
+        try {
+            return (Long) (Object) idGetter.invokeExact(entity);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unable to read ID field of " + entityClass.getName(), e);
+        }
+    }
+
+    void setId(Object entity, Long id) {
+        try {
+            idSetter.invokeExact(entity, (Object) id);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unable to set ID field of " + entityClass.getName(), e);
+        }
+    }
+}
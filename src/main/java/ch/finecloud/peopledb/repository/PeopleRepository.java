@@ -1,15 +1,31 @@
 package ch.finecloud.peopledb.repository;
 
 import ch.finecloud.peopledb.annotation.SQL;
+import ch.finecloud.peopledb.cache.EntityCache;
 import ch.finecloud.peopledb.model.Address;
 import ch.finecloud.peopledb.model.CrudOperation;
 import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.model.Region;
+import ch.finecloud.peopledb.model.SalaryStats;
 
+import javax.sql.DataSource;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.sql.*;
+import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 public class PeopleRepository extends CRUDRepository<Person> {
     private AddressRepository addressRepository = null;
@@ -17,65 +33,387 @@ public class PeopleRepository extends CRUDRepository<Person> {
             INSERT INTO PEOPLE
             (FIRST_NAME, LAST_NAME, DOB, SALARY, EMAIL, HOME_ADDRESS)
             VALUES (?, ?, ?, ?, ?, ?)""";
-    public static final String FIND_BY_ID_SQL = "SELECT ID, FIRST_NAME, LAST_NAME, DOB, SALARY, HOME_ADDRESS FROM PEOPLE WHERE ID=?";
-    public static final String FIND_ALL_SQL = "SELECT ID, FIRST_NAME, LAST_NAME, DOB, SALARY FROM PEOPLE";
+    public static final String UPSERT_PERSON_SQL = """
+            INSERT INTO PEOPLE
+            (ID, FIRST_NAME, LAST_NAME, DOB, SALARY, EMAIL, HOME_ADDRESS)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+            ON DUPLICATE KEY UPDATE FIRST_NAME=VALUES(FIRST_NAME), LAST_NAME=VALUES(LAST_NAME), DOB=VALUES(DOB),
+            SALARY=VALUES(SALARY), EMAIL=VALUES(EMAIL), HOME_ADDRESS=VALUES(HOME_ADDRESS)""";
+    // the columns of PEOPLE, e.g. for exports
+    public static final String PERSON_COLUMNS = "P.ID, P.FIRST_NAME, P.LAST_NAME, P.DOB, P.SALARY, P.EMAIL, P.HOME_ADDRESS";
+    public static final String FIND_ALL_SQL = "SELECT " + PERSON_COLUMNS + ", " + """
+            A.ID AS HOME_ID, A.STREET_ADDRESS, A.ADDRESS2, A.CITY, A.STATE, A.POSTCODE, A.COUNTY, A.REGION, A.COUNTRY
+            FROM PEOPLE AS P
+            LEFT OUTER JOIN ADDRESSES AS A ON P.HOME_ADDRESS = A.ID
+            """;
+    public static final String FIND_BY_ID_SQL = FIND_ALL_SQL + "WHERE P.ID=?";
+    public static final String FIND_BY_IDS_SQL = FIND_ALL_SQL + "WHERE P.ID IN (:ids)";
+    public static final String FIND_PAGE_SQL = FIND_ALL_SQL + "WHERE P.ID > ? ORDER BY P.ID LIMIT ?";
     public static final String SELECT_COUNT_SQL = "SELECT COUNT(*) FROM PEOPLE";
     public static final String DELETE_SQL = "DELETE FROM PEOPLE WHERE ID=?";
     public static final String DELETE_IN_SQL = "DELETE FROM PEOPLE WHERE ID IN (:ids)";
-    public static final String UPDATE_SQL = "UPDATE PEOPLE SET FIRST_NAME=?, LAST_NAME=?, DOB=?, SALARY=? WHERE ID=?";
+    public static final String UPDATE_SQL = """
+            UPDATE PEOPLE SET FIRST_NAME=?, LAST_NAME=?, DOB=?, SALARY=?, EMAIL=?, HOME_ADDRESS=? WHERE ID=?""";
+    // one UPDATE per set of changed fields, the set of all fields maps to UPDATE_SQL
+    private static final Map<Set<Person.Field>, String> UPDATE_SQL_BY_FIELDS = new ConcurrentHashMap<>();
+    private static final String SALARY_STATS = "COUNT(P.SALARY), SUM(P.SALARY), MIN(P.SALARY), MAX(P.SALARY), AVG(P.SALARY), STDDEV_POP(P.SALARY)";
+    public static final String SALARY_BY_REGION_SQL = """
+            SELECT A.REGION, %s
+            FROM PEOPLE AS P
+            LEFT OUTER JOIN ADDRESSES AS A ON P.HOME_ADDRESS = A.ID
+            GROUP BY A.REGION""".formatted(SALARY_STATS);
+    public static final String SALARY_BY_DECADE_SQL = """
+            SELECT FLOOR(YEAR(P.DOB) / 10) * 10, %s
+            FROM PEOPLE AS P
+            GROUP BY FLOOR(YEAR(P.DOB) / 10) * 10""".formatted(SALARY_STATS);
+    public static final String SALARY_AND_REGION_SQL = """
+            SELECT P.SALARY, A.REGION
+            FROM PEOPLE AS P
+            LEFT OUTER JOIN ADDRESSES AS A ON P.HOME_ADDRESS = A.ID""";
+    public static final String SALARY_AND_DOB_SQL = "SELECT P.SALARY, P.DOB FROM PEOPLE AS P";
+    public static final String SNAPSHOT_SQL = """
+            SELECT P.ID, P.FIRST_NAME, P.LAST_NAME, P.DOB, P.SALARY, A.REGION
+            FROM PEOPLE AS P
+            LEFT OUTER JOIN ADDRESSES AS A ON P.HOME_ADDRESS = A.ID
+            WHERE P.ID > ? ORDER BY P.ID""";
+    // how many IDs below the last one loaded refresh reads again, to catch rows that committed late
+    public static final int SNAPSHOT_REFRESH_WINDOW = 10_000;
+    private static final ZoneId UTC = ZoneId.of("+0");
+    private static final int HOME_ID = 6;
+    private static final ProjectionTable PROJECTIONS = new ProjectionTable("P.ID", "PEOPLE AS P", """
+            PEOPLE AS P
+            LEFT OUTER JOIN ADDRESSES AS A ON P.HOME_ADDRESS = A.ID""", Map.of(
+            "id", ProjectedProperty.of("P.ID", Long.class, (rs, i) -> rs.getObject(i, Long.class)),
+            "firstName", ProjectedProperty.of("P.FIRST_NAME", String.class, ResultSet::getString),
+            "lastName", ProjectedProperty.of("P.LAST_NAME", String.class, ResultSet::getString),
+            "dob", ProjectedProperty.of("P.DOB", ZonedDateTime.class, (rs, i) -> ZonedDateTime.of(rs.getObject(i, LocalDateTime.class), UTC)),
+            "salary", ProjectedProperty.of("P.SALARY", BigDecimal.class, ResultSet::getBigDecimal),
+            "email", ProjectedProperty.of("P.EMAIL", String.class, ResultSet::getString),
+            // only projections with a home address join ADDRESSES
+            "homeAddress", new ProjectedProperty("A.ID, A.STREET_ADDRESS, A.ADDRESS2, A.CITY, A.STATE, A.POSTCODE, A.COUNTY, A.REGION, A.COUNTRY",
+                    9, Address.class, true, AddressRepository::extractAddress)));
+    private final ColumnIndexes columns = new ColumnIndexes("ID", "FIRST_NAME", "LAST_NAME", "DOB", "SALARY", "EMAIL",
+            "HOME_ID", "STREET_ADDRESS", "ADDRESS2", "CITY", "STATE", "POSTCODE", "COUNTY", "REGION", "COUNTRY");
 
     public PeopleRepository(Connection connection) {
-        super(connection);
-        addressRepository = new AddressRepository(connection);
+        this(ConnectionSource.of(connection));
+    }
+
+    public PeopleRepository(DataSource dataSource) {
+        this(ConnectionSource.of(dataSource));
+    }
+
+    public PeopleRepository(ConnectionSource connectionSource) {
+        this(connectionSource, connectionSource);
+    }
+
+    // reads from a replica, see CRUDRepository(ConnectionSource, ConnectionSource)
+    public PeopleRepository(ConnectionSource connectionSource, ConnectionSource readSource) {
+        super(connectionSource, readSource);
+        addressRepository = new AddressRepository(connectionSource, readSource);
+    }
+
+    // where salary statistics are computed
+    public enum Aggregation {
+        // by the database, only the statistics are transferred
+        PUSHDOWN,
+        // by streaming the salaries with their groups, for databases that lack the aggregate functions
+        IN_PROCESS
+    }
+
+    public List<SalaryStats<Region>> salaryStatsByRegion() {
+        return salaryStatsByRegion(Aggregation.PUSHDOWN);
+    }
+
+    // grouped by the region of the home address, people without one are in the null group
+    public List<SalaryStats<Region>> salaryStatsByRegion(Aggregation aggregation) {
+        if (aggregation == Aggregation.PUSHDOWN) {
+            return aggregate(SALARY_BY_REGION_SQL, rs -> AddressRepository.toRegion(rs.getString(1)));
+        }
+        return aggregateInProcess(SALARY_AND_REGION_SQL, rs -> AddressRepository.toRegion(rs.getString(2)));
+    }
+
+    public List<SalaryStats<Integer>> salaryStatsByDecade() {
+        return salaryStatsByDecade(Aggregation.PUSHDOWN);
+    }
+
+    // grouped by the decade of birth, e.g. 1980 for 1980 to 1989
+    public List<SalaryStats<Integer>> salaryStatsByDecade(Aggregation aggregation) {
+        if (aggregation == Aggregation.PUSHDOWN) {
+            return aggregate(SALARY_BY_DECADE_SQL, rs -> rs.getInt(1));
+        }
+        return aggregateInProcess(SALARY_AND_DOB_SQL, rs -> Math.floorDiv(rs.getObject(2, LocalDateTime.class).getYear(), 10) * 10);
+    }
+
+    private <K extends Comparable<K>> List<SalaryStats<K>> aggregate(String sql, GroupReader<K> groupReader) {
+        return withConnection(CrudOperation.AGGREGATE, "Unable to aggregate salaries", (connection, timer) -> {
+            List<SalaryStats<K>> stats = new ArrayList<>();
+            PreparedStatement ps = prepare(connection, sql);
+            timer.prepared();
+            try (ResultSet rs = ps.executeQuery()) {
+                timer.executed();
+                while (rs.next()) {
+                    BigDecimal total = rs.getBigDecimal(3);
+                    stats.add(new SalaryStats<>(groupReader.read(rs), rs.getLong(2),
+                            total == null ? BigDecimal.ZERO.setScale(2) : total, rs.getBigDecimal(4), rs.getBigDecimal(5),
+                            rs.getDouble(6), rs.getDouble(7)));
+                }
+            }
+            timer.rows(stats.size());
+            stats.sort(Comparator.comparing(SalaryStats::group, Comparator.nullsFirst(Comparator.naturalOrder())));
+            return stats;
+        });
+    }
+
+    // the SQL selects the salary first, the group reader reads the rest
+    private <K extends Comparable<K>> List<SalaryStats<K>> aggregateInProcess(String sql, GroupReader<K> groupReader) {
+        return withConnection(CrudOperation.AGGREGATE, "Unable to aggregate salaries", (connection, timer) -> {
+            Map<K, SalaryAccumulator> accumulators = new HashMap<>();
+            PreparedStatement ps = prepare(connection, sql);
+            timer.prepared();
+            ps.setFetchSize(getFetchSize());
+            long rows = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                timer.executed();
+                while (rs.next()) {
+                    SalaryAccumulator accumulator = accumulators.computeIfAbsent(groupReader.read(rs), k -> new SalaryAccumulator());
+                    BigDecimal salary = rs.getBigDecimal(1);
+                    if (salary != null) {
+                        accumulator.add(salary.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact());
+                    }
+                    rows++;
+                }
+            }
+            timer.rows(rows);
+            List<SalaryStats<K>> stats = new ArrayList<>();
+            accumulators.forEach((group, accumulator) -> stats.add(accumulator.toStats(group)));
+            stats.sort(Comparator.comparing(SalaryStats::group, Comparator.nullsFirst(Comparator.naturalOrder())));
+            return stats;
+        });
+    }
+
+    // loads all people into a snapshot for scans that do not need the database, see PeopleSnapshot
+    public PeopleSnapshot snapshot() {
+        return refresh(PeopleSnapshot.EMPTY);
+    }
+
+    // a snapshot with the people added since the given one was loaded, which stays unchanged, see PeopleSnapshot
+    public PeopleSnapshot refresh(PeopleSnapshot snapshot) {
+        return withConnection(CrudOperation.FIND_ALL, "Unable to load snapshot", (connection, timer) -> {
+            PeopleSnapshot.Builder builder = snapshot.toBuilder();
+            PreparedStatement ps = prepare(connection, SNAPSHOT_SQL);
+            timer.prepared();
+            ps.setFetchSize(getFetchSize());
+            ps.setLong(1, Math.max(0, snapshot.getLastId() - SNAPSHOT_REFRESH_WINDOW));
+            long rows = 0;
+            boolean added = false;
+            try (ResultSet rs = ps.executeQuery()) {
+                timer.executed();
+                while (rs.next()) {
+                    added |= builder.add(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getObject(4, LocalDateTime.class),
+                            rs.getBigDecimal(5), AddressRepository.toRegion(rs.getString(6)));
+                    rows++;
+                }
+            }
+            timer.rows(rows);
+            return added ? builder.build() : snapshot;
+        });
+    }
+
+    @FunctionalInterface
+    private interface GroupReader<K> {
+        K read(ResultSet rs) throws SQLException;
+    }
+
+    public AddressRepository getAddressRepository() {
+        return addressRepository;
+    }
+
+    // the address cache is also filled with the home addresses that people are found by ID with
+    public void setAddressCache(EntityCache<Address> cache) {
+        addressRepository.setCache(cache);
     }
 
     @Override
     @SQL(value = SAVE_PERSON_SQL, operationType = CrudOperation.SAVE)
     void mapForSave(Person entity, PreparedStatement ps) throws SQLException {
-        Address savedAddress = null;
         ps.setString(1, entity.getFirstName());
         ps.setString(2, entity.getLastName());
         ps.setTimestamp(3, convertDobToTimestamp(entity.getDob()));
         ps.setBigDecimal(4, entity.getSalary());
         ps.setString(5, entity.getEmail());
+        setHomeAddress(entity, ps, 6);
+    }
+
+    private void setHomeAddress(Person entity, PreparedStatement ps, int index) throws SQLException {
         if (entity.getHomeAddress().isPresent()) {
-            savedAddress = addressRepository.save(entity.getHomeAddress().get());
-            ps.setLong(6, savedAddress.id());
+            Address savedAddress = entity.getHomeAddress().get();
+            if (savedAddress.id() == null) {
+                savedAddress = addressRepository.save(savedAddress);
+            }
+            ps.setLong(index, savedAddress.id());
         } else {
-            ps.setObject(6, null);
+            ps.setObject(index, null);
+        }
+    }
+
+    @Override
+    void prepareForSaveAll(List<Person> entities) {
+        Set<Address> newAddresses = homeAddresses(entities);
+        newAddresses.removeIf(a -> a.id() != null);
+        if (!newAddresses.isEmpty()) {
+            addressRepository.saveAll(newAddresses);
+        }
+    }
+
+    // new home addresses are saved, the others upserted along with their people
+    @Override
+    void prepareForUpsertAll(List<Person> entities) {
+        Set<Address> addresses = homeAddresses(entities);
+        if (addresses.isEmpty()) {
+            return;
+        }
+        if (!addressRepository.isDeduplicating()) {
+            addressRepository.upsertAll(addresses);
+            return;
+        }
+        // the stored addresses are not changed, the people take the copies with the IDs of their contents
+        List<Address> given = new ArrayList<>(addresses);
+        List<Address> saved = addressRepository.saveAll(given);
+        Map<Address, Address> replaced = new IdentityHashMap<>();
+        for (int i = 0; i < given.size(); i++) {
+            if (saved.get(i) != given.get(i)) {
+                replaced.put(given.get(i), saved.get(i));
+            }
+        }
+        for (Person person : entities) {
+            person.getHomeAddress().map(replaced::get).ifPresent(person::setHomeAddress);
+        }
+    }
+
+    private static Set<Address> homeAddresses(List<Person> entities) {
+        // identity based, so an address object shared by several people is written once
+        Set<Address> addresses = Collections.newSetFromMap(new IdentityHashMap<>());
+        entities.stream()
+                .map(Person::getHomeAddress)
+                .flatMap(Optional::stream)
+                .forEach(addresses::add);
+        return addresses;
+    }
+
+    @Override
+    @SQL(value = UPSERT_PERSON_SQL, operationType = CrudOperation.UPSERT)
+    void mapForUpsert(Person entity, PreparedStatement ps) throws SQLException {
+        ps.setLong(1, entity.getId());
+        int index = 2;
+        for (Person.Field field : Person.Field.values()) {
+            setField(entity, field, ps, index++);
         }
     }
 
     @Override
     @SQL(value = UPDATE_SQL, operationType = CrudOperation.UPDATE)
     void mapForUpdate(Person entity, PreparedStatement ps) throws SQLException {
-        ps.setString(1, entity.getFirstName());
-        ps.setString(2, entity.getLastName());
-        ps.setTimestamp(3, convertDobToTimestamp(entity.getDob()));
-        ps.setBigDecimal(4, entity.getSalary());
+        int index = 1;
+        for (Person.Field field : Person.Field.values()) {
+            setField(entity, field, ps, index++);
+        }
+    }
+
+    // writes only the fields changed since the person was loaded or written, people never loaded get all of them
+    @Override
+    PreparedStatement prepareUpdate(Connection connection, Person entity) throws SQLException {
+        Set<Person.Field> fields = entity.getChangedFields();
+        if (fields.isEmpty()) {
+            return null;
+        }
+        PreparedStatement ps = prepare(connection, UPDATE_SQL_BY_FIELDS.computeIfAbsent(fields, PeopleRepository::updateSql));
+        int index = 1;
+        for (Person.Field field : fields) {
+            setField(entity, field, ps, index++);
+        }
+        ps.setLong(index, entity.getId());
+        return ps;
+    }
+
+    private static String updateSql(Set<Person.Field> fields) {
+        // the fields are named after their columns
+        return fields.stream()
+                .map(field -> field.name() + "=?")
+                .collect(Collectors.joining(", ", "UPDATE PEOPLE SET ", " WHERE ID=?"));
+    }
+
+    private void setField(Person entity, Person.Field field, PreparedStatement ps, int index) throws SQLException {
+        switch (field) {
+            case FIRST_NAME -> ps.setString(index, entity.getFirstName());
+            case LAST_NAME -> ps.setString(index, entity.getLastName());
+            case DOB -> ps.setTimestamp(index, convertDobToTimestamp(entity.getDob()));
+            case SALARY -> ps.setBigDecimal(index, entity.getSalary());
+            case EMAIL -> ps.setString(index, entity.getEmail());
+            case HOME_ADDRESS -> setHomeAddress(entity, ps, index);
+        }
+    }
+
+    @Override
+    ProjectionTable getProjectionTable() {
+        return PROJECTIONS;
+    }
+
+    @Override
+    void written(Person entity) {
+        entity.markUnchanged();
+    }
+
+    @Override
+    Person copyOf(Person entity) {
+        Person copy = new Person(entity.getId(), entity.getFirstName(), entity.getLastName(), entity.getDob(), entity.getSalary());
+        copy.setEmail(entity.getEmail());
+        entity.getHomeAddress().ifPresent(copy::setHomeAddress);
+        copy.markUnchanged();
+        return copy;
+    }
+
+    @Override
+    long dependentsCacheStamp() {
+        return addressRepository.cacheStamp();
+    }
+
+    @Override
+    void cacheDependents(Person entity, long stamp) {
+        if (addressRepository.getCache() != null) {
+            entity.getHomeAddress().ifPresent(address -> addressRepository.getCache().put(address.id(), address, stamp));
+        }
     }
 
     @Override
     @SQL(value = FIND_BY_ID_SQL, operationType = CrudOperation.FIND_BY_ID)
+    @SQL(value = FIND_BY_IDS_SQL, operationType = CrudOperation.FIND_BY_IDS)
     @SQL(value = FIND_ALL_SQL, operationType = CrudOperation.FIND_ALL)
+    @SQL(value = FIND_PAGE_SQL, operationType = CrudOperation.FIND_PAGE)
     @SQL(value = SELECT_COUNT_SQL, operationType = CrudOperation.COUNT)
     @SQL(value = DELETE_SQL, operationType = CrudOperation.DELETE_ONE)
     @SQL(value = DELETE_IN_SQL, operationType = CrudOperation.DELETE_MANY)
-    Person extractEntityFromResultSet(ResultSet rs) throws SQLException {
-        long personId = rs.getLong("ID");
-        String firstName = rs.getString("FIRST_NAME");
-        String lastName = rs.getString("LAST_NAME");
-        ZonedDateTime dob = ZonedDateTime.of(rs.getTimestamp("DOB").toLocalDateTime(), ZoneId.of("+0"));
-        BigDecimal salary = rs.getBigDecimal("SALARY");
-        long homeAddressId = rs.getLong("HOME_ADDRESS");
-        Optional<Address> homeAddress = addressRepository.findById(homeAddressId);
+    Person extractEntityFromResultSet(ResultSet rs, String sql) throws SQLException {
+        int[] c = columns.of(sql, rs);
+        long personId = rs.getLong(c[0]);
+        String firstName = rs.getString(c[1]);
+        String lastName = rs.getString(c[2]);
+        ZonedDateTime dob = ZonedDateTime.of(rs.getObject(c[3], LocalDateTime.class), UTC);
+        BigDecimal salary = rs.getBigDecimal(c[4]);
         Person person = new Person(personId, firstName, lastName, dob, salary);
-        person.setHomeAddress(homeAddress.orElse(null));
+        person.setEmail(rs.getString(c[5]));
+        // the address columns come from the LEFT JOIN, HOME_ID is NULL when the person has no home address
+        rs.getLong(c[HOME_ID]);
+        if (!rs.wasNull()) {
+            Address homeAddress = AddressRepository.extractAddress(rs, c, HOME_ID);
+            person.setHomeAddress(homeAddress);
+        }
+        person.markUnchanged();
         return person;
     }
 
     private static Timestamp convertDobToTimestamp(ZonedDateTime dob) {
-        return Timestamp.valueOf(dob.withZoneSameInstant(ZoneId.of("+0")).toLocalDateTime());
+        return Timestamp.valueOf(dob.withZoneSameInstant(UTC).toLocalDateTime());
     }
 
 }
@@ -0,0 +1,405 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Region;
+import ch.finecloud.peopledb.model.SalaryStats;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A read-only copy of the PEOPLE table for analytic scans, held in one primitive array per column: IDs, DOBs as
+ * epoch seconds in UTC, salaries in cents, names as codes into a dictionary and the home address's region as a
+ * byte. Scans split the rows among the common fork-join pool and never touch the database.
+ * <p>
+ * Created by {@link PeopleRepository#snapshot()}. {@link PeopleRepository#refresh(PeopleSnapshot)} only loads
+ * people it does not hold yet, since PEOPLE has no column that records when a row changed. Updated and deleted
+ * people thus only show in a new snapshot. IDs are handed out before their rows commit, so refresh also re-reads
+ * the last {@link PeopleRepository#SNAPSHOT_REFRESH_WINDOW} IDs below the last one loaded. A row that commits
+ * later than that many newer IDs is missed until the next snapshot.
+ */
+public final class PeopleSnapshot {
+
+    static final PeopleSnapshot EMPTY = new Builder(null).build();
+    private static final long NONE = Long.MIN_VALUE;
+    private static final short NO_YEAR = Short.MIN_VALUE;
+    private static final int ANY_NAME = Integer.MIN_VALUE;
+    private static final int SCAN_THRESHOLD = 1 << 16;
+
+    private final int size;
+    private final long[] ids;
+    private final long[] dobs;
+    private final short[] birthYears;
+    private final long[] salaries;
+    private final int[] firstNames;
+    private final int[] lastNames;
+    // the region's ordinal + 1, 0 for people without a home address
+    private final byte[] regions;
+    private final Dictionary names;
+    private final int minYear;
+    private final int maxYear;
+
+    private PeopleSnapshot(Builder builder) {
+        size = builder.size;
+        ids = builder.ids;
+        dobs = builder.dobs;
+        birthYears = builder.birthYears;
+        salaries = builder.salaries;
+        firstNames = builder.firstNames;
+        lastNames = builder.lastNames;
+        regions = builder.regions;
+        names = builder.names;
+        minYear = builder.minYear;
+        maxYear = builder.maxYear;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // the highest ID loaded, 0 if the snapshot is empty
+    public long getLastId() {
+        return size == 0 ? 0 : ids[size - 1];
+    }
+
+    public long count(Filter filter) {
+        int firstName = nameCode(filter.firstName);
+        int lastName = nameCode(filter.lastName);
+        return scan((from, to) -> {
+            long count = 0;
+            for (int row = from; row < to; row++) {
+                if (matches(filter, firstName, lastName, row)) {
+                    count++;
+                }
+            }
+            return count;
+        }, Long::sum);
+    }
+
+    // the IDs of the matching people in ascending order, e.g. to load them with findAllById
+    public long[] ids(Filter filter) {
+        int firstName = nameCode(filter.firstName);
+        int lastName = nameCode(filter.lastName);
+        return scan((from, to) -> {
+            long[] matches = new long[to - from];
+            int count = 0;
+            for (int row = from; row < to; row++) {
+                if (matches(filter, firstName, lastName, row)) {
+                    matches[count++] = ids[row];
+                }
+            }
+            return Arrays.copyOf(matches, count);
+        }, (left, right) -> {
+            long[] both = Arrays.copyOf(left, left.length + right.length);
+            System.arraycopy(right, 0, both, left.length, right.length);
+            return both;
+        });
+    }
+
+    // the same statistics as PeopleRepository#salaryStatsByRegion, restricted to the matching people
+    public List<SalaryStats<Region>> salaryStatsByRegion(Filter filter) {
+        Region[] values = Region.values();
+        return salaryStats(filter, values.length + 1, row -> regions[row], group -> group == 0 ? null : values[group - 1]);
+    }
+
+    // the same statistics as PeopleRepository#salaryStatsByDecade, restricted to the matching people
+    public List<SalaryStats<Integer>> salaryStatsByDecade(Filter filter) {
+        int firstDecade = Math.floorDiv(minYear, 10);
+        int groups = minYear > maxYear ? 1 : Math.floorDiv(maxYear, 10) - firstDecade + 2;
+        return salaryStats(filter, groups,
+                row -> birthYears[row] == NO_YEAR ? 0 : Math.floorDiv(birthYears[row], 10) - firstDecade + 1,
+                group -> group == 0 ? null : (group - 1 + firstDecade) * 10);
+    }
+
+    // the groups are numbered in the order of their keys, null first
+    private <K> List<SalaryStats<K>> salaryStats(Filter filter, int groups, IntUnaryOperator groupOf, IntFunction<K> keyOf) {
+        int firstName = nameCode(filter.firstName);
+        int lastName = nameCode(filter.lastName);
+        SalaryAccumulator[] accumulators = scan((from, to) -> {
+            SalaryAccumulator[] partial = new SalaryAccumulator[groups];
+            for (int row = from; row < to; row++) {
+                if (matches(filter, firstName, lastName, row)) {
+                    int group = groupOf.applyAsInt(row);
+                    if (partial[group] == null) {
+                        partial[group] = new SalaryAccumulator();
+                    }
+                    if (salaries[row] != NONE) {
+                        partial[group].add(salaries[row]);
+                    }
+                }
+            }
+            return partial;
+        }, (left, right) -> {
+            for (int group = 0; group < groups; group++) {
+                if (left[group] == null) {
+                    left[group] = right[group];
+                } else if (right[group] != null) {
+                    left[group].addAll(right[group]);
+                }
+            }
+            return left;
+        });
+        List<SalaryStats<K>> stats = new ArrayList<>();
+        for (int group = 0; group < groups; group++) {
+            if (accumulators[group] != null) {
+                stats.add(accumulators[group].toStats(keyOf.apply(group)));
+            }
+        }
+        return stats;
+    }
+
+    private boolean matches(Filter filter, int firstName, int lastName, int row) {
+        long salary = salaries[row];
+        long dob = dobs[row];
+        return salary >= filter.minSalary && salary <= filter.maxSalary
+                && dob >= filter.bornFrom && dob <= filter.bornUntil
+                && (filter.regions & 1 << regions[row]) != 0
+                && (firstName == ANY_NAME || firstNames[row] == firstName)
+                && (lastName == ANY_NAME || lastNames[row] == lastName);
+    }
+
+    // a name that no one has gets a code no row has
+    private int nameCode(String name) {
+        return name == null ? ANY_NAME : names.code(name);
+    }
+
+    private <R> R scan(RangeScan<R> leaf, BinaryOperator<R> combine) {
+        return new ScanTask<>(0, size, leaf, combine).invoke();
+    }
+
+    Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    private static long toCents(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Which people a scan includes. Each restriction narrows the ones before, bounds are inclusive. A salary band
+     * excludes people without a salary.
+     */
+    public static final class Filter {
+
+        public static final Filter ALL = new Filter(NONE, Long.MAX_VALUE, NONE, Long.MAX_VALUE, -1, null, null);
+
+        private final long minSalary;
+        private final long maxSalary;
+        private final long bornFrom;
+        private final long bornUntil;
+        private final int regions;
+        private final String firstName;
+        private final String lastName;
+
+        private Filter(long minSalary, long maxSalary, long bornFrom, long bornUntil, int regions, String firstName,
+                       String lastName) {
+            this.minSalary = minSalary;
+            this.maxSalary = maxSalary;
+            this.bornFrom = bornFrom;
+            this.bornUntil = bornUntil;
+            this.regions = regions;
+            this.firstName = firstName;
+            this.lastName = lastName;
+        }
+
+        public Filter salaryBetween(BigDecimal min, BigDecimal max) {
+            return new Filter(Math.max(minSalary, toCents(min)), Math.min(maxSalary, toCents(max)), bornFrom, bornUntil,
+                    regions, firstName, lastName);
+        }
+
+        public Filter bornBetween(ZonedDateTime from, ZonedDateTime until) {
+            return new Filter(minSalary, maxSalary, Math.max(bornFrom, from.toEpochSecond()),
+                    Math.min(bornUntil, until.toEpochSecond()), regions, firstName, lastName);
+        }
+
+        // null stands for the people without a home address
+        public Filter inRegions(Region... regions) {
+            int mask = 0;
+            for (Region region : regions) {
+                mask |= 1 << (region == null ? 0 : region.ordinal() + 1);
+            }
+            return new Filter(minSalary, maxSalary, bornFrom, bornUntil, this.regions & mask, firstName, lastName);
+        }
+
+        public Filter withFirstName(String firstName) {
+            return new Filter(minSalary, maxSalary, bornFrom, bornUntil, regions, narrow(this.firstName, firstName), lastName);
+        }
+
+        public Filter withLastName(String lastName) {
+            return new Filter(minSalary, maxSalary, bornFrom, bornUntil, regions, firstName, narrow(this.lastName, lastName));
+        }
+
+        private static String narrow(String current, String name) {
+            if (current != null && !current.equals(name)) {
+                throw new IllegalArgumentException("Filter already restricted to name " + current);
+            }
+            return name;
+        }
+    }
+
+    /**
+     * Appends people to a copy of a snapshot's columns. The snapshot it was created from stays unchanged.
+     */
+    static final class Builder {
+        private int size;
+        private long[] ids;
+        private long[] dobs;
+        private short[] birthYears;
+        private long[] salaries;
+        private int[] firstNames;
+        private int[] lastNames;
+        private byte[] regions;
+        private final Dictionary names;
+        private int minYear = Integer.MAX_VALUE;
+        private int maxYear = Integer.MIN_VALUE;
+
+        private Builder(PeopleSnapshot from) {
+            int capacity = from == null ? 16 : Math.max(16, from.size + (from.size >> 1));
+            size = from == null ? 0 : from.size;
+            ids = from == null ? new long[capacity] : Arrays.copyOf(from.ids, capacity);
+            dobs = from == null ? new long[capacity] : Arrays.copyOf(from.dobs, capacity);
+            birthYears = from == null ? new short[capacity] : Arrays.copyOf(from.birthYears, capacity);
+            salaries = from == null ? new long[capacity] : Arrays.copyOf(from.salaries, capacity);
+            firstNames = from == null ? new int[capacity] : Arrays.copyOf(from.firstNames, capacity);
+            lastNames = from == null ? new int[capacity] : Arrays.copyOf(from.lastNames, capacity);
+            regions = from == null ? new byte[capacity] : Arrays.copyOf(from.regions, capacity);
+            names = from == null ? new Dictionary() : new Dictionary(from.names);
+            if (from != null) {
+                minYear = from.minYear;
+                maxYear = from.maxYear;
+            }
+        }
+
+        // false if the ID is present already; rows come in ascending order of their IDs, a lower one of a late
+        // commit is inserted at its place
+        boolean add(long id, String firstName, String lastName, LocalDateTime dob, BigDecimal salary, Region region) {
+            int index = size;
+            if (size > 0 && id <= ids[size - 1]) {
+                index = Arrays.binarySearch(ids, 0, size, id);
+                if (index >= 0) {
+                    return false;
+                }
+                index = -index - 1;
+            }
+            if (size == ids.length) {
+                grow();
+            }
+            if (index < size) {
+                shift(index);
+            }
+            ids[index] = id;
+            dobs[index] = dob == null ? NONE : dob.toEpochSecond(ZoneOffset.UTC);
+            birthYears[index] = dob == null ? NO_YEAR : (short) dob.getYear();
+            if (dob != null) {
+                minYear = Math.min(minYear, dob.getYear());
+                maxYear = Math.max(maxYear, dob.getYear());
+            }
+            salaries[index] = salary == null ? NONE : toCents(salary);
+            firstNames[index] = names.encode(firstName);
+            lastNames[index] = names.encode(lastName);
+            regions[index] = (byte) (region == null ? 0 : region.ordinal() + 1);
+            size++;
+            return true;
+        }
+
+        PeopleSnapshot build() {
+            return new PeopleSnapshot(this);
+        }
+
+        // moves the rows from index on up by one
+        private void shift(int index) {
+            int length = size - index;
+            System.arraycopy(ids, index, ids, index + 1, length);
+            System.arraycopy(dobs, index, dobs, index + 1, length);
+            System.arraycopy(birthYears, index, birthYears, index + 1, length);
+            System.arraycopy(salaries, index, salaries, index + 1, length);
+            System.arraycopy(firstNames, index, firstNames, index + 1, length);
+            System.arraycopy(lastNames, index, lastNames, index + 1, length);
+            System.arraycopy(regions, index, regions, index + 1, length);
+        }
+
+        private void grow() {
+            int capacity = size + (size >> 1);
+            ids = Arrays.copyOf(ids, capacity);
+            dobs = Arrays.copyOf(dobs, capacity);
+            birthYears = Arrays.copyOf(birthYears, capacity);
+            salaries = Arrays.copyOf(salaries, capacity);
+            firstNames = Arrays.copyOf(firstNames, capacity);
+            lastNames = Arrays.copyOf(lastNames, capacity);
+            regions = Arrays.copyOf(regions, capacity);
+        }
+    }
+
+    // first and last names share one dictionary, as many names occur as both
+    private static final class Dictionary {
+        private final Map<String, Integer> codes;
+
+        private Dictionary() {
+            codes = new HashMap<>();
+        }
+
+        private Dictionary(Dictionary other) {
+            codes = new HashMap<>(other.codes);
+        }
+
+        private int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = codes.size();
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        private int code(String value) {
+            return codes.getOrDefault(value, -2);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RangeScan<R> {
+        R scan(int from, int to);
+    }
+
+    private static final class ScanTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final RangeScan<R> leaf;
+        private final BinaryOperator<R> combine;
+
+        private ScanTask(int from, int to, RangeScan<R> leaf, BinaryOperator<R> combine) {
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+            this.combine = combine;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from <= SCAN_THRESHOLD) {
+                return leaf.scan(from, to);
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask<R> left = new ScanTask<>(from, middle, leaf, combine);
+            left.fork();
+            R right = new ScanTask<>(middle, to, leaf, combine).compute();
+            return combine.apply(left.join(), right);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.model.Region;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * The columns {@link PeopleRepository#find(Criteria)} can filter on. REGION is the region of the home address.
+ */
+public final class PersonColumns {
+
+    private static final ZoneId UTC = ZoneId.of("+0");
+
+    public static final Column<Person, Long> ID = new Column<>("PEOPLE.ID", "P.ID", PreparedStatement::setLong);
+    public static final Column<Person, String> FIRST_NAME = new Column<>("PEOPLE.FIRST_NAME", "P.FIRST_NAME", PreparedStatement::setString);
+    public static final Column<Person, String> LAST_NAME = new Column<>("PEOPLE.LAST_NAME", "P.LAST_NAME", PreparedStatement::setString);
+    public static final Column<Person, ZonedDateTime> DOB = new Column<>("PEOPLE.DOB", "P.DOB", (ps, index, dob) ->
+            ps.setTimestamp(index, Timestamp.valueOf(dob.withZoneSameInstant(UTC).toLocalDateTime())));
+    public static final Column<Person, BigDecimal> SALARY = new Column<>("PEOPLE.SALARY", "P.SALARY", PreparedStatement::setBigDecimal);
+    public static final Column<Person, String> EMAIL = new Column<>("PEOPLE.EMAIL", "P.EMAIL", PreparedStatement::setString);
+    public static final Column<Person, Region> REGION = new Column<>("ADDRESSES.REGION", "A.REGION", (ps, index, region) ->
+            ps.setString(index, region.name()));
+
+    private PersonColumns() {
+    }
+}
@@ -0,0 +1,21 @@
+package ch.finecloud.peopledb.repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * An entity property that projections can select: the columns it is read from, the type it is read as and
+ * whether its columns come from a joined table.
+ */
+record ProjectedProperty(String columns, int columnCount, Class<?> type, boolean joined, Reader reader) {
+
+    static ProjectedProperty of(String column, Class<?> type, Reader reader) {
+        return new ProjectedProperty(column, 1, type, false, reader);
+    }
+
+    @FunctionalInterface
+    interface Reader {
+        // reads the property from its columns, starting at the given one
+        Object read(ResultSet rs, int firstColumn) throws SQLException;
+    }
+}
@@ -0,0 +1,164 @@
+package ch.finecloud.peopledb.repository;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.RecordComponent;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.StringJoiner;
+
+/**
+ * Maps a record or an interface onto the properties of a {@link ProjectionTable}. Record components and
+ * interface getters are matched by name, e.g. {@code salary()} or {@code getSalary()} selects the salary. A
+ * projection selects only the columns of its properties and joins only when one of them needs it. Optional
+ * properties are wrapped, everything else has to match the property's type.
+ */
+final class Projection<R> {
+
+    private final Class<R> type;
+    private final ProjectedProperty[] properties;
+    private final int[] firstColumns;
+    private final boolean[] optional;
+    private final String findAllSql;
+    private final String findByIdSql;
+    // the record's constructor taking all values as one Object[], adapted once so that map can invokeExact it
+    private final MethodHandle constructor;
+    private final Map<Method, Integer> getters;
+
+    private Projection(Class<R> type, ProjectionTable table, List<String> names, List<Class<?>> types,
+                       MethodHandle constructor, Map<Method, Integer> getters) {
+        this.type = type;
+        this.constructor = constructor == null ? null
+                : constructor.asType(constructor.type().generic()).asSpreader(Object[].class, names.size());
+        this.getters = getters;
+        properties = new ProjectedProperty[names.size()];
+        firstColumns = new int[names.size()];
+        optional = new boolean[names.size()];
+        StringJoiner select = new StringJoiner(", ", "SELECT ", "\n");
+        boolean joined = false;
+        int column = 1;
+        for (int i = 0; i < properties.length; i++) {
+            ProjectedProperty property = table.properties().get(names.get(i));
+            if (property == null) {
+                throw new IllegalArgumentException(type.getSimpleName() + "." + names.get(i) + " is not a property of " + table.from());
+            }
+            optional[i] = types.get(i) == Optional.class;
+            if (!optional[i] && !wrap(types.get(i)).isAssignableFrom(property.type())) {
+                throw new IllegalArgumentException(type.getSimpleName() + "." + names.get(i) + " must be a " + property.type().getSimpleName());
+            }
+            properties[i] = property;
+            firstColumns[i] = column;
+            column += property.columnCount();
+            select.add(property.columns());
+            joined |= property.joined();
+        }
+        findAllSql = select + "FROM " + (joined ? table.joinedFrom() : table.from()) + "\n";
+        findByIdSql = findAllSql + "WHERE " + table.idColumn() + "=?";
+    }
+
+    static <R> Projection<R> of(Class<R> type, ProjectionTable table) {
+        if (type.isRecord()) {
+            RecordComponent[] components = type.getRecordComponents();
+            List<String> names = Arrays.stream(components).map(RecordComponent::getName).toList();
+            List<Class<?>> types = Arrays.stream(components).<Class<?>>map(RecordComponent::getType).toList();
+            try {
+                Constructor<R> constructor = type.getDeclaredConstructor(types.toArray(Class<?>[]::new));
+                constructor.setAccessible(true);
+                return new Projection<>(type, table, names, types, MethodHandles.lookup().unreflectConstructor(constructor), null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Unable to access the constructor of " + type.getName(), e);
+            }
+        }
+        if (type.isInterface()) {
+            List<String> names = new ArrayList<>();
+            List<Class<?>> types = new ArrayList<>();
+            Map<Method, Integer> getters = new HashMap<>();
+            for (Method method : type.getMethods()) {
+                if (Modifier.isAbstract(method.getModifiers())) {
+                    if (method.getParameterCount() > 0 || method.getReturnType() == void.class) {
+                        throw new IllegalArgumentException(method.getName() + " of " + type.getName() + " is not a getter");
+                    }
+                    getters.put(method, names.size());
+                    names.add(propertyName(method.getName()));
+                    types.add(method.getReturnType());
+                }
+            }
+            return new Projection<>(type, table, names, types, null, getters);
+        }
+        throw new IllegalArgumentException("Projection " + type.getName() + " must be a record or an interface");
+    }
+
+    String findAllSql() {
+        return findAllSql;
+    }
+
+    String findByIdSql() {
+        return findByIdSql;
+    }
+
+    R map(ResultSet rs) throws SQLException {
+        Object[] values = new Object[properties.length];
+        for (int i = 0; i < values.length; i++) {
+            Object value = properties[i].reader().read(rs, firstColumns[i]);
+            values[i] = optional[i] ? Optional.ofNullable(value) : value;
+        }
+        if (constructor != null) {
+            try {
+                return type.cast((Object) constructor.invokeExact(values));
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Unable to create " + type.getName(), e);
+            }
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new Values(values)));
+    }
+
+    private static String propertyName(String getter) {
+        if (getter.length() > 3 && getter.startsWith("get") && Character.isUpperCase(getter.charAt(3))) {
+            return Character.toLowerCase(getter.charAt(3)) + getter.substring(4);
+        }
+        return getter;
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        return MethodType.methodType(type).wrap().returnType();
+    }
+
+    private final class Values implements InvocationHandler {
+        private final Object[] values;
+
+        private Values(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Integer index = getters.get(method);
+            if (index != null) {
+                return values[index];
+            }
+            if (method.isDefault()) {
+                return InvocationHandler.invokeDefault(proxy, method, args);
+            }
+            return switch (method.getName()) {
+                case "equals" -> proxy == args[0];
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "toString" -> type.getSimpleName() + Arrays.toString(values);
+                default -> throw new UnsupportedOperationException(method.getName());
+            };
+        }
+    }
+}
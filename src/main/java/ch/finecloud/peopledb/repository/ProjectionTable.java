@@ -0,0 +1,14 @@
+package ch.finecloud.peopledb.repository;
+
+import java.util.Map;
+
+/**
+ * Where projections of a repository's entity select from.
+ *
+ * @param idColumn   the column findById compares with the ID
+ * @param from       the FROM clause for properties of the entity's own table
+ * @param joinedFrom the FROM clause for projections that select a joined property
+ * @param properties the properties by name
+ */
+record ProjectionTable(String idColumn, String from, String joinedFrom, Map<String, ProjectedProperty> properties) {
+}
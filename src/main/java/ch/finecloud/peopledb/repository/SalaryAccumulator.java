@@ -0,0 +1,46 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.SalaryStats;
+
+import java.math.BigDecimal;
+
+/**
+ * Accumulates salaries as cents in primitives, so aggregating in process allocates nothing per row.
+ */
+final class SalaryAccumulator {
+
+    private long count;
+    private long totalCents;
+    private long minCents = Long.MAX_VALUE;
+    private long maxCents = Long.MIN_VALUE;
+    private double sumOfSquares;
+
+    void add(long cents) {
+        count++;
+        totalCents += cents;
+        minCents = Math.min(minCents, cents);
+        maxCents = Math.max(maxCents, cents);
+        double salary = cents / 100.0;
+        sumOfSquares += salary * salary;
+    }
+
+    // merges the salaries another accumulator has seen, e.g. of another part of a parallel scan
+    SalaryAccumulator addAll(SalaryAccumulator other) {
+        count += other.count;
+        totalCents += other.totalCents;
+        minCents = Math.min(minCents, other.minCents);
+        maxCents = Math.max(maxCents, other.maxCents);
+        sumOfSquares += other.sumOfSquares;
+        return this;
+    }
+
+    <K> SalaryStats<K> toStats(K group) {
+        if (count == 0) {
+            return new SalaryStats<>(group, 0, BigDecimal.ZERO.setScale(2), null, null, 0, 0);
+        }
+        double average = totalCents / 100.0 / count;
+        double variance = Math.max(0, sumOfSquares / count - average * average);
+        return new SalaryStats<>(group, count, BigDecimal.valueOf(totalCents, 2), BigDecimal.valueOf(minCents, 2),
+                BigDecimal.valueOf(maxCents, 2), average, Math.sqrt(variance));
+    }
+}
@@ -0,0 +1,54 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.annotation.MultiSQL;
+import ch.finecloud.peopledb.annotation.SQL;
+import ch.finecloud.peopledb.model.CrudOperation;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The @SQL declarations of a repository class, keyed by operation. The repositories of this module are read at
+ * build time by SqlAnnotationProcessor, others are read by reflection once per class.
+ */
+final class SqlRegistry {
+
+    private static final ClassValue<Map<CrudOperation, String>> REGISTRY = new ClassValue<>() {
+        @Override
+        protected Map<CrudOperation, String> computeValue(Class<?> type) {
+            Map<CrudOperation, String> generated = GeneratedSqlRegistry.of(type.getName());
+            return generated != null ? generated : readAnnotations(type);
+        }
+    };
+
+    private SqlRegistry() {
+    }
+
+    static Map<CrudOperation, String> of(Class<?> repositoryClass) {
+        return REGISTRY.get(repositoryClass);
+    }
+
+    // the fallback for repository classes that were not compiled with the processor
+    static Map<CrudOperation, String> readAnnotations(Class<?> repositoryClass) {
+        Map<CrudOperation, String> sqlByOperation = new EnumMap<>(CrudOperation.class);
+        Method[] methods = repositoryClass.getDeclaredMethods();
+        // repeated @SQL annotations come wrapped in @MultiSQL and take precedence over single ones
+        for (Method method : methods) {
+            MultiSQL multiSql = method.getAnnotation(MultiSQL.class);
+            if (multiSql != null) {
+                for (SQL sql : multiSql.value()) {
+                    sqlByOperation.putIfAbsent(sql.operationType(), sql.value());
+                }
+            }
+        }
+        for (Method method : methods) {
+            SQL sql = method.getAnnotation(SQL.class);
+            if (sql != null) {
+                sqlByOperation.putIfAbsent(sql.operationType(), sql.value());
+            }
+        }
+        return Collections.unmodifiableMap(sqlByOperation);
+    }
+}
@@ -0,0 +1,76 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.metrics.RepositoryMetricsListener;
+import ch.finecloud.peopledb.metrics.StatementMetrics;
+import ch.finecloud.peopledb.model.CrudOperation;
+
+/**
+ * Splits the time of one repository operation into preparing, executing and mapping. Every mark adds the time
+ * since the previous mark to its phase, so loops over chunks accumulate per phase. The disabled timer does nothing.
+ */
+final class StatementTimer {
+
+    static final StatementTimer DISABLED = new StatementTimer(null, null, null);
+
+    private final RepositoryMetricsListener listener;
+    private final String repository;
+    private final CrudOperation operation;
+    private long last;
+    private long prepareNanos;
+    private long executeNanos;
+    private long mapNanos;
+    private long rows;
+
+    private StatementTimer(RepositoryMetricsListener listener, String repository, CrudOperation operation) {
+        this.listener = listener;
+        this.repository = repository;
+        this.operation = operation;
+    }
+
+    static StatementTimer start(RepositoryMetricsListener listener, String repository, CrudOperation operation) {
+        if (listener == RepositoryMetricsListener.NONE) {
+            return DISABLED;
+        }
+        StatementTimer timer = new StatementTimer(listener, repository, operation);
+        timer.last = System.nanoTime();
+        return timer;
+    }
+
+    void prepared() {
+        if (listener != null) {
+            long now = System.nanoTime();
+            prepareNanos += now - last;
+            last = now;
+        }
+    }
+
+    void executed() {
+        if (listener != null) {
+            long now = System.nanoTime();
+            executeNanos += now - last;
+            last = now;
+        }
+    }
+
+    void mapped() {
+        if (listener != null) {
+            long now = System.nanoTime();
+            mapNanos += now - last;
+            last = now;
+        }
+    }
+
+    void rows(long count) {
+        // the disabled timer is shared by all threads
+        if (listener != null) {
+            rows += count;
+        }
+    }
+
+    void finish(boolean failed) {
+        if (listener != null) {
+            mapped();
+            listener.onStatement(new StatementMetrics(repository, operation, rows, prepareNanos, executeNanos, mapNanos, failed));
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.exception.DataException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffers saves, updates and deletes and writes them later with one JDBC batch per kind of mutation. Each entity
+ * has at most one pending mutation: repeated updates collapse into one, an update of a pending save is written
+ * by the save and a delete cancels a pending save. A flush happens once flushSize entities are pending, every
+ * flushInterval and on {@link #flush()} or {@link #close()}. Flushes run one after another, so the mutations of
+ * one entity reach the database in order. Callers block while capacity entities are pending or being flushed.
+ * <p>
+ * A flush writes one batch of up to the repository's batch size at a time and stops at the first batch that
+ * fails. The mutations of that batch and of the batches after it are put back into the buffer, except for saves
+ * whose entity got its ID, as their rows were inserted. Updates and deletes of a failed batch are all written
+ * again, which is harmless as writing them twice has the same effect. A mutation that failed before is written
+ * in a batch of its own, and one that failed {@link #setMaxAttempts(int) maxAttempts} times is dropped, see
+ * {@link #takeDropped()}. Failures of the periodic flush are thrown by the next call to flush or close.
+ */
+public class WriteBehindRepository<T> implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    private final CRUDRepository<T> repository;
+    private final int flushSize;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    private Map<Object, Mutation<T>> pending = new LinkedHashMap<>();
+    private final List<T> dropped = new ArrayList<>();
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private int inFlight;
+    private boolean flushRequested;
+    private boolean closed;
+    private Thread shutdownHook;
+
+    WriteBehindRepository(CRUDRepository<T> repository, int flushSize, Duration flushInterval, int capacity) {
+        if (flushSize < 1 || capacity < flushSize) {
+            throw new IllegalArgumentException("Flush size must be at least 1 and at most the capacity");
+        }
+        this.repository = repository;
+        this.flushSize = flushSize;
+        this.capacity = capacity;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalNanos = flushInterval.toNanos();
+        flusher.scheduleWithFixedDelay(this::flushInBackground, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void save(T entity) {
+        enqueue(new Mutation<>(Kind.SAVE, entity));
+    }
+
+    public void update(T entity) {
+        enqueue(new Mutation<>(Kind.UPDATE, entity));
+    }
+
+    public void delete(T entity) {
+        enqueue(new Mutation<>(Kind.DELETE, entity));
+    }
+
+    // how many failed flushes a mutation is written in before it is dropped
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    // the entities whose mutations were dropped since the last call, see setMaxAttempts
+    public List<T> takeDropped() {
+        lock.lock();
+        try {
+            List<T> taken = new ArrayList<>(dropped);
+            dropped.clear();
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the number of entities with a mutation that is not written yet
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size() + inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes all pending mutations, including the ones a failed periodic flush put back, and throws the
+     * failure of the last periodic flush if there was one.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            RuntimeException previous = failure.getAndSet(null);
+            write(takePending());
+            if (previous != null) {
+                throw previous;
+            }
+        }
+    }
+
+    /**
+     * Flushes the buffer when the JVM shuts down, unless it was closed before. Without it, mutations still
+     * pending at shutdown are lost.
+     */
+    public void flushOnShutdown() {
+        lock.lock();
+        try {
+            if (shutdownHook == null && !closed) {
+                shutdownHook = new Thread(this::close, "write-behind-shutdown");
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // stops the periodic flush and writes what is still pending
+    @Override
+    public void close() {
+        Thread hook;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            hook = shutdownHook;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        flusher.shutdown();
+        if (hook != null && hook != Thread.currentThread()) {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        }
+        flush();
+    }
+
+    private void enqueue(Mutation<T> mutation) {
+        Object key = keyOf(mutation.entity());
+        lock.lock();
+        try {
+            while (!closed && !pending.containsKey(key) && pending.size() + inFlight >= capacity) {
+                requestFlush();
+                notFull.await();
+            }
+            if (closed) {
+                throw new IllegalStateException("Write-behind repository is closed");
+            }
+            Mutation<T> merged = combine(pending.get(key), mutation);
+            if (merged == null) {
+                pending.remove(key);
+            } else {
+                pending.put(key, merged);
+            }
+            if (pending.size() >= flushSize) {
+                requestFlush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataException("Interrupted while waiting for the write-behind buffer", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held
+    private void requestFlush() {
+        if (!flushRequested && !flusher.isShutdown()) {
+            flushRequested = true;
+            flusher.execute(this::flushInBackground);
+        }
+    }
+
+    private void flushInBackground() {
+        synchronized (flushLock) {
+            try {
+                write(takePending());
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private Map<Object, Mutation<T>> takePending() {
+        lock.lock();
+        try {
+            Map<Object, Mutation<T>> batch = pending;
+            pending = new LinkedHashMap<>();
+            inFlight = batch.size();
+            flushRequested = false;
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(Map<Object, Mutation<T>> batch) {
+        List<Map<Object, Mutation<T>>> groups = group(batch);
+        Map<Object, Mutation<T>> unwritten = new LinkedHashMap<>();
+        int next = 0;
+        try {
+            while (next < groups.size()) {
+                Map<Object, Mutation<T>> group = groups.get(next++);
+                try {
+                    write(group.values().iterator().next().kind(), group.values().stream().map(Mutation::entity).toList());
+                } catch (RuntimeException e) {
+                    group.forEach((key, mutation) -> {
+                        // a save whose entity got its ID was inserted before the batch failed
+                        if (mutation.kind() != Kind.SAVE || EntityMetadata.of(mutation.entity().getClass()).getId(mutation.entity()) == null) {
+                            unwritten.put(key, mutation.failed());
+                        }
+                    });
+                    throw e;
+                }
+            }
+        } finally {
+            for (Map<Object, Mutation<T>> group : groups.subList(next, groups.size())) {
+                unwritten.putAll(group);
+            }
+            requeue(unwritten);
+        }
+    }
+
+    // one batch per kind and repository chunk, a mutation that failed before gets a batch of its own
+    private List<Map<Object, Mutation<T>>> group(Map<Object, Mutation<T>> batch) {
+        List<Map<Object, Mutation<T>>> groups = new ArrayList<>();
+        for (Kind kind : Kind.values()) {
+            Map<Object, Mutation<T>> group = new LinkedHashMap<>();
+            for (Map.Entry<Object, Mutation<T>> entry : batch.entrySet()) {
+                Mutation<T> mutation = entry.getValue();
+                if (mutation.kind() != kind) {
+                    continue;
+                }
+                if (mutation.failures() > 0) {
+                    groups.add(Map.of(entry.getKey(), mutation));
+                    continue;
+                }
+                group.put(entry.getKey(), mutation);
+                if (group.size() == repository.getBatchSize()) {
+                    groups.add(group);
+                    group = new LinkedHashMap<>();
+                }
+            }
+            if (!group.isEmpty()) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    private void write(Kind kind, List<T> entities) {
+        switch (kind) {
+            case SAVE -> repository.saveAll(entities);
+            case UPDATE -> repository.updateAll(entities);
+            case DELETE -> repository.deleteByIds(entities.stream().mapToLong(this::idOf).toArray());
+        }
+    }
+
+    private void requeue(Map<Object, Mutation<T>> unwritten) {
+        lock.lock();
+        try {
+            unwritten.forEach((key, mutation) -> {
+                // mutations queued in the meantime are newer than the ones that failed
+                Mutation<T> merged = combine(mutation, pending.get(key));
+                if (merged != null && merged.failures() >= maxAttempts) {
+                    dropped.add(merged.entity());
+                    merged = null;
+                }
+                if (merged == null) {
+                    pending.remove(key);
+                } else {
+                    pending.put(key, merged);
+                }
+            });
+            inFlight = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The one mutation that has the effect of the older followed by the newer one, or null if they cancel out.
+     */
+    static <T> Mutation<T> combine(Mutation<T> older, Mutation<T> newer) {
+        if (older == null) {
+            return newer;
+        }
+        if (newer == null) {
+            return older;
+        }
+        return switch (newer.kind()) {
+            case SAVE -> newer;
+            // the pending save writes the entity's latest state, a pending delete wins over later updates
+            case UPDATE -> older.kind() == Kind.UPDATE ? newer : new Mutation<>(older.kind(), newer.entity());
+            // a row that was never saved need not be deleted
+            case DELETE -> older.kind() == Kind.SAVE ? null : newer;
+        };
+    }
+
+    // entities are tracked by ID, new ones by identity until their save is written
+    private Object keyOf(T entity) {
+        Long id = EntityMetadata.of(entity.getClass()).getId(entity);
+        return id != null ? id : new IdentityKey(entity);
+    }
+
+    private long idOf(T entity) {
+        return EntityMetadata.of(entity.getClass()).getId(entity);
+    }
+
+    enum Kind {
+        SAVE, UPDATE, DELETE
+    }
+
+    // failures counts the flushes the mutation failed in, a newer mutation of the entity starts over
+    record Mutation<T>(Kind kind, T entity, int failures) {
+
+        Mutation(Kind kind, T entity) {
+            this(kind, entity, 0);
+        }
+
+        Mutation<T> failed() {
+            return new Mutation<>(kind, entity, failures + 1);
+        }
+    }
+
+    private record IdentityKey(Object entity) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey other && other.entity == entity;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(entity);
+        }
+    }
+}
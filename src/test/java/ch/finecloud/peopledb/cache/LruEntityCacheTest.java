@@ -0,0 +1,94 @@
+package ch.finecloud.peopledb.cache;
+
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LruEntityCacheTest {
+
+    @Test
+    public void countsHitsAndMisses() {
+        LruEntityCache<String> cache = new LruEntityCache<>(10);
+        cache.put(1L, "one");
+        assertThat(cache.get(1L)).contains("one");
+        assertThat(cache.get(2L)).isEmpty();
+        assertThat(cache.stats()).isEqualTo(new CacheStats(1, 1, 0, 1));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        LruEntityCache<String> cache = new LruEntityCache<>(2);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        cache.get(1L);
+        cache.put(3L, "three");
+        assertThat(cache.get(2L)).isEmpty();
+        assertThat(cache.get(1L)).contains("one");
+        assertThat(cache.stats().evictions()).isEqualTo(1);
+    }
+
+    @Test
+    public void expiresEntriesAfterTtl() {
+        MutableClock clock = new MutableClock();
+        LruEntityCache<String> cache = new LruEntityCache<>(10, Duration.ofSeconds(5), clock);
+        cache.put(1L, "one");
+        clock.millis = 4_000;
+        assertThat(cache.get(1L)).contains("one");
+        clock.millis = 6_000;
+        assertThat(cache.get(1L)).isEmpty();
+        assertThat(cache.stats().size()).isZero();
+    }
+
+    @Test
+    public void canInvalidate() {
+        LruEntityCache<String> cache = new LruEntityCache<>(10);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        cache.invalidate(1L);
+        assertThat(cache.get(1L)).isEmpty();
+        cache.invalidateAll();
+        assertThat(cache.get(2L)).isEmpty();
+    }
+
+    @Test
+    public void skipsPutsOfIdsInvalidatedAfterTheStamp() {
+        LruEntityCache<String> cache = new LruEntityCache<>(10);
+        long stamp = cache.stamp();
+        cache.invalidate(1L);
+        cache.put(1L, "stale", stamp);
+        cache.put(2L, "two", stamp);
+        assertThat(cache.get(1L)).isEmpty();
+        assertThat(cache.get(2L)).contains("two");
+        cache.put(1L, "one", cache.stamp());
+        assertThat(cache.get(1L)).contains("one");
+    }
+
+    private static class MutableClock extends Clock {
+        private long millis;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneId.of("UTC");
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+    }
+}
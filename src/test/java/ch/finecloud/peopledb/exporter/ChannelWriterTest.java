@@ -0,0 +1,56 @@
+package ch.finecloud.peopledb.exporter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChannelWriterTest {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Test
+    public void quotesCsvValuesOnlyWhenNeeded() throws IOException {
+        ChannelWriter out = new ChannelWriter(Channels.newChannel(bytes), false, 16);
+        out.appendCsv("plain").append(',').appendCsv("a,b").append(',').appendCsv("say \"hi\"\nbye");
+        out.finish();
+        assertThat(bytes.toString(StandardCharsets.UTF_8)).isEqualTo("plain,\"a,b\",\"say \"\"hi\"\"\nbye\"");
+    }
+
+    @Test
+    public void escapesJsonStrings() throws IOException {
+        ChannelWriter out = new ChannelWriter(Channels.newChannel(bytes), false, 16);
+        out.appendJson("a\"b\\c\n\u0001");
+        out.finish();
+        assertThat(bytes.toString(StandardCharsets.UTF_8)).isEqualTo("\"a\\\"b\\\\c\\n\\u0001\"");
+    }
+
+    @Test
+    public void encodesTextLongerThanTheBuffer() throws IOException {
+        // the surrogate pairs end up split across buffer boundaries
+        String text = "Zürich 😀 ".repeat(100);
+        ChannelWriter out = new ChannelWriter(Channels.newChannel(bytes), false, 7);
+        out.append(text);
+        out.finish();
+        assertThat(bytes.toString(StandardCharsets.UTF_8)).isEqualTo(text);
+        assertThat(out.getBytesWritten()).isEqualTo(bytes.size());
+    }
+
+    @Test
+    public void compressesWithGzip() throws IOException {
+        String text = "id,firstName\n".repeat(1000);
+        ChannelWriter out = new ChannelWriter(Channels.newChannel(bytes), true, 64);
+        out.append(text);
+        out.finish();
+        assertThat(out.getBytesWritten()).isEqualTo(bytes.size()).isLessThan(text.length());
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(text);
+        }
+    }
+}
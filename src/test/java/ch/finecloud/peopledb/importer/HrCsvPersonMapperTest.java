@@ -0,0 +1,39 @@
+package ch.finecloud.peopledb.importer;
+
+import ch.finecloud.peopledb.model.Address;
+import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.model.Region;
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HrCsvPersonMapperTest {
+
+    private static final String LINE = "677509,Drs.,Lois,M,Walker,F,lois.walker@hotmail.com,Donald Walker,Helen Walker," +
+            "Lewis,3/29/1981,09:26:50 PM,36.36,60,11/24/2003,Q4,H2,2003,11,November,Nov,24,Monday,Mon,13.68,168251," +
+            "21%,467-99-4677,303-572-8492,Denver,Denver,Denver,CO,80224,West,lmwalker,DCa}.T}X:v?NP";
+
+    @Test
+    public void canMapPersonWithAddress() {
+        Person person = new HrCsvPersonMapper().apply(LINE);
+        assertThat(person.getFirstName()).isEqualTo("Lois");
+        assertThat(person.getLastName()).isEqualTo("Walker");
+        assertThat(person.getEmail()).isEqualTo("lois.walker@hotmail.com");
+        assertThat(person.getSalary()).isEqualByComparingTo("168251");
+        assertThat(person.getDob()).isEqualTo(ZonedDateTime.of(1981, 3, 29, 21, 26, 50, 0, ZoneId.of("+0")));
+        Address address = person.getHomeAddress().get();
+        assertThat(address.city()).isEqualTo("Denver");
+        assertThat(address.state()).isEqualTo("CO");
+        assertThat(address.postcode()).isEqualTo("80224");
+        assertThat(address.region()).isEqualTo(Region.WEST);
+    }
+
+    @Test
+    public void mapsUnknownRegionToNull() {
+        Person person = new HrCsvPersonMapper().apply(LINE.replace(",West,", ",Midwest,"));
+        assertThat(person.getHomeAddress().get().region()).isNull();
+    }
+}
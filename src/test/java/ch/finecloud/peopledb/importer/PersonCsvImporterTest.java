@@ -0,0 +1,125 @@
+package ch.finecloud.peopledb.importer;
+
+import ch.finecloud.peopledb.exception.DataException;
+import ch.finecloud.peopledb.model.Person;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PersonCsvImporterTest {
+
+    private static final Function<String, Person> MAPPER = line -> {
+        String[] a = line.split(",");
+        return new Person(a[0], a[1], ZonedDateTime.of(1980, 1, 1, 12, 0, 0, 0, ZoneId.of("+0")));
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final JdbcDataSource dataSource = new JdbcDataSource();
+    private Connection keepAlive;
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource.setUrl("jdbc:h2:mem:import;MODE=MySQL;DATABASE_TO_UPPER=false;DB_CLOSE_DELAY=-1");
+        keepAlive = dataSource.getConnection();
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("""
+                    CREATE TABLE ADDRESSES (ID BIGINT AUTO_INCREMENT PRIMARY KEY, STREET_ADDRESS VARCHAR(255),
+                    ADDRESS2 VARCHAR(255), CITY VARCHAR(255), STATE VARCHAR(255), POSTCODE VARCHAR(255), COUNTY VARCHAR(255),
+                    REGION VARCHAR(255), COUNTRY VARCHAR(255), CONTENT_HASH CHAR(64) UNIQUE)""");
+            statement.execute("""
+                    CREATE TABLE PEOPLE (ID BIGINT AUTO_INCREMENT PRIMARY KEY, FIRST_NAME VARCHAR(255), LAST_NAME VARCHAR(255),
+                    DOB TIMESTAMP, SALARY DECIMAL(15,2), EMAIL VARCHAR(255), HOME_ADDRESS BIGINT)""");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+        }
+        keepAlive.close();
+    }
+
+    @Test(timeout = 30_000)
+    public void importsAllLinesAndCommitsEveryInterval() throws IOException, SQLException {
+        List<Long> progress = new CopyOnWriteArrayList<>();
+        PersonCsvImporter importer = new PersonCsvImporter(dataSource, MAPPER);
+        importer.setWriterThreads(1);
+        importer.setCommitEvery(1000);
+        importer.setListener(p -> progress.add(p.rowsWritten()));
+
+        ImportProgress result = importer.importFile(file(2500, ""));
+
+        assertThat(result.rowsWritten()).isEqualTo(2500);
+        // the parsers hand over chunks of 1000 lines, the last commit takes the rest
+        assertThat(progress).containsExactly(1000L, 2000L, 2500L);
+        assertThat(count()).isEqualTo(2500);
+    }
+
+    @Test(timeout = 30_000)
+    public void importsNothingFromHeaderOnly() throws IOException, SQLException {
+        PersonCsvImporter importer = new PersonCsvImporter(dataSource, MAPPER);
+        assertThat(importer.importFile(file(0, "")).rowsWritten()).isZero();
+        assertThat(count()).isZero();
+    }
+
+    @Test(timeout = 30_000)
+    public void failsWithParserFailure() throws IOException {
+        PersonCsvImporter importer = new PersonCsvImporter(dataSource, line -> {
+            throw new IllegalArgumentException("Bad line " + line);
+        });
+        importer.setQueueCapacity(1);
+        assertThatThrownBy(() -> importer.importFile(file(5000, "")))
+                .isInstanceOf(DataException.class)
+                .hasRootCauseInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test(timeout = 30_000)
+    public void failsWithWriterFailure() throws IOException {
+        PersonCsvImporter importer = new PersonCsvImporter(dataSource, MAPPER);
+        importer.setQueueCapacity(1);
+        // the names do not fit the column, so the writers fail while the reader still has lines to hand over
+        assertThatThrownBy(() -> importer.importFile(file(5000, "x".repeat(300))))
+                .isInstanceOf(DataException.class)
+                .hasStackTraceContaining("FIRST_NAME");
+    }
+
+    private Path file(int lines, String namePrefix) throws IOException {
+        List<String> content = new ArrayList<>(lines + 2);
+        content.add("firstName,lastName");
+        for (int i = 0; i < lines; i++) {
+            content.add(namePrefix + "First" + i + ",Last" + i);
+        }
+        content.add("");
+        return Files.write(folder.newFile().toPath(), content);
+    }
+
+    private long count() throws SQLException {
+        try (Statement statement = keepAlive.createStatement(); ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM PEOPLE")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+}
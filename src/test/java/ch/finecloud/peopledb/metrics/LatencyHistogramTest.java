@@ -0,0 +1,34 @@
+package ch.finecloud.peopledb.metrics;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketBoundsContainTheirValues() {
+        for (long value : new long[]{0, 15, 16, 31, 32, 33, 1_000, 123_456_789, Long.MAX_VALUE / 3}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertThat(LatencyHistogram.upperBoundOf(bucket)).isGreaterThanOrEqualTo(value);
+            if (bucket > 0) {
+                assertThat(LatencyHistogram.upperBoundOf(bucket - 1)).isLessThan(value);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1_000);
+        }
+        assertThat(histogram.count()).isEqualTo(10_000);
+        assertThat(histogram.max()).isEqualTo(10_000_000);
+        assertThat((double) histogram.percentile(50)).isCloseTo(5_000_000, within(5_000_000 * 0.07));
+        assertThat((double) histogram.percentile(99)).isCloseTo(9_900_000, within(9_900_000 * 0.07));
+        assertThat(histogram.percentile(100)).isEqualTo(10_000_000);
+        assertThat(histogram.mean()).isEqualTo(5_000_500.0);
+    }
+}
@@ -2,6 +2,7 @@ package ch.finecloud.peopledb.model;
 
 import org.junit.Test;
 
+import java.math.BigDecimal;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 
@@ -22,4 +23,18 @@ public class PersonTest {
         Person p2 = new Person("p2", "smith", ZonedDateTime.of(2000,12,25,13,41,14,0, ZoneId.of("+0")));
         assertThat(p1).isNotEqualTo(p2);
     }
+
+    @Test
+    public void tracksChangedFieldsOnceMarkedUnchanged() {
+        Person p1 = new Person("p1", "smith", ZonedDateTime.of(2000,12,25,13,41,14,0, ZoneId.of("+0")));
+        assertThat(p1.getChangedFields()).containsExactly(Person.Field.values());
+
+        p1.markUnchanged();
+        p1.setFirstName("p1");
+        p1.setSalary(new BigDecimal("100"));
+        assertThat(p1.getChangedFields()).containsExactly(Person.Field.SALARY);
+
+        p1.markUnchanged();
+        assertThat(p1.getChangedFields()).isEmpty();
+    }
 }
\ No newline at end of file
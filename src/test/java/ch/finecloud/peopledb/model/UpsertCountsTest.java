@@ -0,0 +1,21 @@
+package ch.finecloud.peopledb.model;
+
+import org.junit.Test;
+
+import java.sql.Statement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UpsertCountsTest {
+
+    @Test
+    public void countsInsertedUpdatedAndUnknownRows() {
+        UpsertCounts counts = UpsertCounts.of(new int[]{1, 2, 0, 1, Statement.SUCCESS_NO_INFO});
+        assertThat(counts).isEqualTo(new UpsertCounts(2, 2, 1));
+    }
+
+    @Test
+    public void addsCounts() {
+        assertThat(new UpsertCounts(1, 2, 3).plus(new UpsertCounts(1, 1, 0))).isEqualTo(new UpsertCounts(2, 3, 3));
+    }
+}
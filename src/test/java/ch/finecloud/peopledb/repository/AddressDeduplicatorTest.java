@@ -0,0 +1,40 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Address;
+import ch.finecloud.peopledb.model.Region;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AddressDeduplicatorTest {
+
+    @Test
+    public void hashesNormalizedContentWithoutId() {
+        Address address = new Address(1L, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        Address sameAddress = new Address(null, " 123  teststr", "APT. 1A", "Bla Bla ", "wa", "90210", "United States", "Fulton", Region.WEST);
+        assertThat(AddressDeduplicator.contentHash(address))
+                .hasSize(64)
+                .isEqualTo(AddressDeduplicator.contentHash(sameAddress));
+    }
+
+    @Test
+    public void distinguishesFieldsAndBlanks() {
+        Address address = new Address(null, "123 TestStr", null, "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        Address blankAddress2 = new Address(null, "123 TestStr", " ", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        Address otherRegion = new Address(null, "123 TestStr", null, "Bla Bla", "WA", "90210", "United States", "Fulton", Region.NORTH);
+        assertThat(AddressDeduplicator.contentHash(address))
+                .isEqualTo(AddressDeduplicator.contentHash(blankAddress2))
+                .isNotEqualTo(AddressDeduplicator.contentHash(otherRegion));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedHash() {
+        AddressDeduplicator deduplicator = new AddressDeduplicator(2);
+        deduplicator.put("a", 1);
+        deduplicator.put("b", 2);
+        deduplicator.get("a");
+        deduplicator.put("c", 3);
+        assertThat(deduplicator.get("a")).isEqualTo(1);
+        assertThat(deduplicator.get("b")).isNull();
+    }
+}
@@ -0,0 +1,35 @@
+package ch.finecloud.peopledb.repository;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CRUDRepositoryTest {
+
+    @Test
+    public void canBuildInListSql() {
+        assertThat(CRUDRepository.inListSql(PeopleRepository.DELETE_IN_SQL, 3))
+                .isEqualTo("DELETE FROM PEOPLE WHERE ID IN (?,?,?)");
+    }
+
+    @Test
+    public void padsRemainingIdsToNextInListSize() throws SQLException {
+        List<String> calls = new ArrayList<>();
+        CRUDRepository.forEachInListChunk(new long[]{1, 2, 3}, (size, chunks) ->
+                chunks.forEach(c -> calls.add(size + ":" + LongStream.of(c).boxed().toList())));
+        assertThat(calls).containsExactly("8:[1, 2, 3, 3, 3, 3, 3, 3]");
+    }
+
+    @Test
+    public void groupsFullChunksIntoOneBatch() throws SQLException {
+        long[] ids = LongStream.rangeClosed(1, 257).toArray();
+        List<String> calls = new ArrayList<>();
+        CRUDRepository.forEachInListChunk(ids, (size, chunks) -> calls.add(size + "x" + chunks.size()));
+        assertThat(calls).containsExactly("128x2", "1x1");
+    }
+}
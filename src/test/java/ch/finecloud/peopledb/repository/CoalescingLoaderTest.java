@@ -0,0 +1,76 @@
+package ch.finecloud.peopledb.repository;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CoalescingLoaderTest {
+
+    private final List<List<Long>> batches = new CopyOnWriteArrayList<>();
+
+    private List<Optional<String>> load(List<Long> ids) {
+        batches.add(ids);
+        return ids.stream().map(id -> id > 0 ? Optional.of("p" + id) : Optional.<String>empty()).toList();
+    }
+
+    @Test
+    public void coalescesConcurrentLoads() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (CoalescingLoader<String> loader = new CoalescingLoader<>(this::load, Duration.ofMillis(200), 100)) {
+            List<CompletableFuture<Optional<String>>> futures = new ArrayList<>();
+            for (long id : new long[]{3, 1, 3, -1}) {
+                futures.add(CompletableFuture.supplyAsync(() -> loader.findById(id), executor));
+            }
+            assertThat(futures).extracting(CompletableFuture::join)
+                    .containsExactly(Optional.of("p3"), Optional.of("p1"), Optional.of("p3"), Optional.empty());
+            assertThat(batches).hasSize(1);
+            assertThat(batches.get(0)).containsExactlyInAnyOrder(3L, 1L, -1L);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void dispatchesFullBatchRightAway() {
+        try (CoalescingLoader<String> loader = new CoalescingLoader<>(this::load, Duration.ofMinutes(1), 2)) {
+            CompletableFuture<Optional<String>> first = loader.load(1L);
+            CompletableFuture<Optional<String>> second = loader.load(2L);
+            assertThat(first.join()).contains("p1");
+            assertThat(second.join()).contains("p2");
+            assertThat(batches).containsExactly(List.of(1L, 2L));
+        }
+    }
+
+    @Test
+    public void failsLoadsOnAnyThrowable() {
+        try (CoalescingLoader<String> loader = new CoalescingLoader<>(ids -> List.of(), Duration.ofMillis(10), 100)) {
+            assertThatThrownBy(() -> loader.findById(1L)).hasCauseInstanceOf(IndexOutOfBoundsException.class);
+        }
+    }
+
+    @Test
+    public void loadsPendingBatchOnCloseAndRejectsLaterLoads() {
+        CoalescingLoader<String> loader = new CoalescingLoader<>(this::load, Duration.ofMinutes(1), 100);
+        CompletableFuture<Optional<String>> pending = loader.load(1L);
+        loader.close();
+        assertThat(pending.join()).contains("p1");
+        assertThatThrownBy(() -> loader.load(2L)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void rejectsNullIds() {
+        try (CoalescingLoader<String> loader = new CoalescingLoader<>(this::load, Duration.ofMinutes(1), 100)) {
+            assertThatThrownBy(() -> loader.load(null)).isInstanceOf(NullPointerException.class);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ch.finecloud.peopledb.repository;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ColumnIndexesTest {
+
+    private static final String SQL = "SELECT * FROM PEOPLE";
+
+    private final AtomicInteger metaDataCalls = new AtomicInteger();
+
+    @Test
+    public void resolvesIndexesInLabelOrder() throws SQLException {
+        ColumnIndexes columns = new ColumnIndexes("LAST_NAME", "ID");
+        assertThat(columns.of(SQL, resultSet("ID", "first_name", "last_name"))).containsExactly(3, 1);
+    }
+
+    @Test
+    public void prefersFirstColumnWithLabel() throws SQLException {
+        ColumnIndexes columns = new ColumnIndexes("ID");
+        assertThat(columns.of(SQL, resultSet("NAME", "ID", "ID"))).containsExactly(2);
+    }
+
+    @Test
+    public void resolvesOncePerSql() throws SQLException {
+        ColumnIndexes columns = new ColumnIndexes("ID");
+        // e.g. findById and findAll taking turns
+        for (int i = 0; i < 3; i++) {
+            assertThat(columns.of("SELECT ID FROM PEOPLE", resultSet("ID"))).containsExactly(1);
+            assertThat(columns.of("SELECT NAME, ID FROM PEOPLE", resultSet("NAME", "ID"))).containsExactly(2);
+        }
+        assertThat(metaDataCalls).hasValue(2);
+    }
+
+    @Test
+    public void rejectsMissingColumn() {
+        ColumnIndexes columns = new ColumnIndexes("EMAIL");
+        assertThatThrownBy(() -> columns.of(SQL, resultSet("ID")))
+                .isInstanceOf(SQLException.class)
+                .hasMessageContaining("EMAIL");
+    }
+
+    private ResultSet resultSet(String... labels) {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ResultSetMetaData.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getColumnCount" -> labels.length;
+                    case "getColumnLabel" -> labels[(int) args[0] - 1];
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+        return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getMetaData" -> {
+                        metaDataCalls.incrementAndGet();
+                        yield metaData;
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,47 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.model.Region;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static ch.finecloud.peopledb.repository.Criteria.where;
+import static ch.finecloud.peopledb.repository.PersonColumns.LAST_NAME;
+import static ch.finecloud.peopledb.repository.PersonColumns.REGION;
+import static ch.finecloud.peopledb.repository.PersonColumns.SALARY;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CriteriaTest {
+
+    @Test
+    public void buildsShapeWithPlaceholders() {
+        Criteria<Person> criteria = where(LAST_NAME.eq("Smith"))
+                .and(SALARY.between(new BigDecimal("1000"), new BigDecimal("2000")).or(REGION.isNull()));
+        assertThat(criteria.getShape()).isEqualTo("P.LAST_NAME=? AND (P.SALARY BETWEEN ? AND ? OR A.REGION IS NULL)");
+        assertThat(criteria.getColumns()).containsExactly("PEOPLE.LAST_NAME", "PEOPLE.SALARY", "ADDRESSES.REGION");
+    }
+
+    @Test
+    public void sharesShapeAcrossValues() {
+        assertThat(where(LAST_NAME.eq("Smith")).and(REGION.in(List.of(Region.WEST))).getShape())
+                .isEqualTo(where(LAST_NAME.eq("Miller")).and(REGION.in(List.of(Region.NORTH))).getShape());
+    }
+
+    @Test
+    public void padsInListsToSharedSizes() {
+        assertThat(LAST_NAME.in(List.of("a", "b", "c")).getShape())
+                .isEqualTo(LAST_NAME.in(List.of("a", "b", "c", "d", "e")).getShape())
+                .isEqualTo("P.LAST_NAME IN (?,?,?,?,?,?,?,?)");
+        List<String> names = IntStream.range(0, 130).mapToObj(String::valueOf).toList();
+        assertThat(LAST_NAME.in(names).getShape()).startsWith("(P.LAST_NAME IN (?,").endsWith(" OR P.LAST_NAME IN (?,?,?,?,?,?,?,?))");
+    }
+
+    @Test
+    public void rejectsNullComparison() {
+        assertThatThrownBy(() -> LAST_NAME.eq(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,41 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Address;
+import ch.finecloud.peopledb.model.Person;
+import ch.finecloud.peopledb.model.Region;
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class EntityMetadataTest {
+
+    @Test
+    public void canGetAndSetPersonId() {
+        Person person = new Person("p1", "smith", ZonedDateTime.of(2000, 12, 25, 13, 41, 14, 0, ZoneId.of("+0")));
+        EntityMetadata metadata = EntityMetadata.of(Person.class);
+        metadata.setId(person, 42L);
+        assertThat(person.getId()).isEqualTo(42L);
+        assertThat(metadata.getId(person)).isEqualTo(42L);
+    }
+
+    @Test
+    public void canSetFinalAddressId() {
+        Address address = new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        EntityMetadata.of(Address.class).setId(address, 7L);
+        assertThat(address.id()).isEqualTo(7L);
+    }
+
+    @Test
+    public void resolvesMetadataOncePerClass() {
+        assertThat(EntityMetadata.of(Person.class)).isSameAs(EntityMetadata.of(Person.class));
+    }
+
+    @Test
+    public void failsForClassWithoutId() {
+        assertThatThrownBy(() -> EntityMetadata.of(String.class)).isInstanceOf(IllegalStateException.class);
+    }
+}
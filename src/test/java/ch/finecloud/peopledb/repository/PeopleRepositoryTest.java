@@ -1,30 +1,62 @@
 package ch.finecloud.peopledb.repository;
 
+import ch.finecloud.peopledb.cache.LruEntityCache;
+import ch.finecloud.peopledb.exception.DataException;
+import ch.finecloud.peopledb.exporter.ExportFormat;
+import ch.finecloud.peopledb.exporter.ExportProgress;
+import ch.finecloud.peopledb.exporter.TableExporter;
+import ch.finecloud.peopledb.metrics.OperationStats;
+import ch.finecloud.peopledb.metrics.RecordingMetricsListener;
 import ch.finecloud.peopledb.model.Address;
+import ch.finecloud.peopledb.model.CrudOperation;
+import ch.finecloud.peopledb.model.Page;
 import ch.finecloud.peopledb.model.Person;
 import ch.finecloud.peopledb.model.Region;
+import ch.finecloud.peopledb.model.SalaryStats;
+import ch.finecloud.peopledb.model.UpsertCounts;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
+import static ch.finecloud.peopledb.repository.Criteria.where;
+import static ch.finecloud.peopledb.repository.PersonColumns.LAST_NAME;
+import static ch.finecloud.peopledb.repository.PersonColumns.SALARY;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class PeopleRepositoryTest {
 
+    private static final String URL = "jdbc:mysql://localhost/PEOPLETEST?user=root&password=iT8$o^JWZwSTJL";
+
     private Connection connection;
     private PeopleRepository repo;
 
     @Before
     public void setUp() throws SQLException {
-        connection = DriverManager.getConnection("jdbc:mysql://localhost/PEOPLETEST?" +
-                "user=root&password=iT8$o^JWZwSTJL");
+        connection = DriverManager.getConnection(URL);
         connection.setAutoCommit(false);
         repo = new PeopleRepository(connection);
     }
@@ -75,6 +107,24 @@ public class PeopleRepositoryTest {
 //        connection.commit();
     }
 
+    @Test
+    public void canFindPersonByIdWithoutAddress() {
+        Person savedPerson = repo.save(new Person("Test", "Person", ZonedDateTime.of(2022, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+        Person foundPerson = repo.findById(savedPerson.getId()).get();
+        assertThat(foundPerson.getHomeAddress()).isEmpty();
+    }
+
+    @Test
+    public void canFindAllWithAddresses() {
+        Person personAddress = new Person("Peter", "Bmith", ZonedDateTime.of(1980, 11,15, 15, 15, 0, 0, ZoneId.of("-6")));
+        Address address = new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        personAddress.setHomeAddress(address);
+        Person savedPerson = repo.save(personAddress);
+
+        Person foundPerson = repo.findAll().stream().filter(p -> p.getId().equals(savedPerson.getId())).findFirst().get();
+        assertThat(foundPerson.getHomeAddress()).contains(address);
+    }
+
     @Test
     public void canFindPersonById() {
         Person savedPerson = repo.save(new Person("Test", "Person", ZonedDateTime.of(2022, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
@@ -118,7 +168,17 @@ public class PeopleRepositoryTest {
     public void canDeletePeople() {
         Person p1 = repo.save(new Person("Test", "Person", ZonedDateTime.of(2022, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
         Person p2 = repo.save(new Person("Test", "Person", ZonedDateTime.of(2022, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+        long startCount = repo.count();
         repo.delete(p1, p2);
+        assertThat(repo.count()).isEqualTo(startCount - 2);
+    }
+
+    @Test
+    public void canDeleteManyPeopleByIds() {
+        List<Person> people = repo.saveAll(newPeople(300));
+        long startCount = repo.count();
+        repo.deleteByIds(people.stream().mapToLong(Person::getId).toArray());
+        assertThat(repo.count()).isEqualTo(startCount - 300);
     }
 
     @Test
@@ -133,6 +193,641 @@ public class PeopleRepositoryTest {
         assertThat(p2.getSalary()).isNotEqualTo(p1.getSalary());
     }
 
+    @Test
+    public void canUpdateOnlyChangedColumns() {
+        Person savedPerson = repo.save(new Person("Peter", "Mueller", ZonedDateTime.of(2001, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+        Person p1 = repo.findById(savedPerson.getId()).get();
+        Person p2 = repo.findById(savedPerson.getId()).get();
+
+        p1.setSalary(new BigDecimal("7300.00"));
+        repo.update(p1);
+        p2.setLastName("Meier");
+        repo.update(p2);
+
+        Person p3 = repo.findById(savedPerson.getId()).get();
+        assertThat(p3.getSalary()).isEqualByComparingTo("7300.00");
+        assertThat(p3.getLastName()).isEqualTo("Meier");
+        assertThat(p3.getChangedFields()).isEmpty();
+    }
+
+    @Test
+    public void canUpdateEmailAndHomeAddress() {
+        Person savedPerson = repo.save(new Person("Peter", "Mueller", ZonedDateTime.of(2001, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+        savedPerson.setEmail("peter@mueller.ch");
+        savedPerson.setHomeAddress(new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST));
+        repo.update(savedPerson);
+
+        Person foundPerson = repo.findById(savedPerson.getId()).get();
+        assertThat(foundPerson.getEmail()).isEqualTo("peter@mueller.ch");
+        assertThat(foundPerson.getHomeAddress().get().streetAddress()).isEqualTo("123 TestStr");
+    }
+
+    @Test
+    public void canUpsertNewAndExistingPeople() {
+        Person existing = repo.save(new Person("Peter", "Mueller", ZonedDateTime.of(2001, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+        existing.setSalary(new BigDecimal("5100.00"));
+        existing.setHomeAddress(new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST));
+        Person fresh = new Person("Anna", "Meier", ZonedDateTime.of(1990, 1, 2, 3, 4, 5, 0, ZoneId.of("+0")));
+
+        List<UpsertCounts> counts = repo.upsertAll(List.of(existing, fresh));
+
+        assertThat(counts).containsExactly(new UpsertCounts(1, 1, 0));
+        assertThat(fresh.getId()).isNotNull();
+        Person foundPerson = repo.findById(existing.getId()).get();
+        assertThat(foundPerson.getSalary()).isEqualByComparingTo("5100.00");
+        assertThat(foundPerson.getHomeAddress().get().streetAddress()).isEqualTo("123 TestStr");
+    }
+
+    @Test
+    public void canReuseStoredAddresses() {
+        repo.getAddressRepository().setDeduplication(1000);
+        Address address = new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        Address sameAddress = new Address(null, "123 teststr", "Apt. 1A", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        Person p1 = newPeople(1).get(0);
+        p1.setHomeAddress(address);
+        repo.save(p1);
+
+        List<Person> people = newPeople(3);
+        people.forEach(p -> p.setHomeAddress(new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST)));
+        people.get(2).setHomeAddress(sameAddress);
+        repo.saveAll(people);
+
+        assertThat(people).extracting(p -> p.getHomeAddress().get().id()).containsOnly(address.id());
+    }
+
+    @Test
+    public void canUpsertWithoutChangingSharedAddresses() {
+        repo.getAddressRepository().setDeduplication(1000);
+        List<Person> people = newPeople(2);
+        people.forEach(p -> p.setHomeAddress(new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST)));
+        repo.saveAll(people);
+        Address shared = people.get(0).getHomeAddress().get();
+
+        Person moved = people.get(0);
+        moved.setHomeAddress(new Address(shared.id(), "9 OtherStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST));
+        repo.upsertAll(List.of(moved));
+
+        assertThat(moved.getHomeAddress().get().id()).isNotEqualTo(shared.id());
+        assertThat(repo.findById(moved.getId()).get().getHomeAddress().get().streetAddress()).isEqualTo("9 OtherStr");
+        assertThat(repo.findById(people.get(1).getId()).get().getHomeAddress().get().streetAddress()).isEqualTo("123 TestStr");
+    }
+
+    @Test
+    public void canDeduplicateAddressesStoredWithoutChangingThem() {
+        Person person = newPeople(1).get(0);
+        person.setHomeAddress(new Address(null, "5 LegacyStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST));
+        repo.save(person);
+        // stored before deduplication, so its row has no content hash
+        Address stored = repo.findById(person.getId()).get().getHomeAddress().get();
+        long storedId = stored.id();
+        repo.getAddressRepository().setDeduplication(1000);
+
+        assertThat(repo.getAddressRepository().upsertAll(List.of(stored))).containsExactly(new UpsertCounts(1, 0, 0));
+        person.setHomeAddress(stored);
+        repo.upsertAll(List.of(person));
+
+        assertThat(stored.id()).isEqualTo(storedId);
+        assertThat(person.getHomeAddress().get().id()).isNotEqualTo(storedId);
+        assertThat(repo.findById(person.getId()).get().getHomeAddress().get().id()).isEqualTo(person.getHomeAddress().get().id());
+    }
+
+    @Test
+    public void countsAddressesStoredByOtherWritersAsExisting() throws SQLException {
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        AddressRepository addresses = repo.getAddressRepository();
+        addresses.setDeduplication(1000);
+        // the first read of the transaction, later ones do not see the address the other writer commits
+        addresses.count();
+        Address address = new Address(null, "7 CollisionStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        Address newAddress = new Address(null, "8 CollisionStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        try (Connection other = DriverManager.getConnection(URL)) {
+            AddressRepository otherAddresses = new PeopleRepository(other).getAddressRepository();
+            otherAddresses.setDeduplication(1000);
+            Address stored = otherAddresses.save(new Address(null, "7 CollisionStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST));
+            try {
+                assertThat(addresses.upsertAll(List.of(address, newAddress))).containsExactly(new UpsertCounts(1, 1, 0));
+                assertThat(address.id()).isEqualTo(stored.id());
+                assertThat(newAddress.id()).isNotNull().isNotEqualTo(stored.id());
+            } finally {
+                connection.rollback();
+                try (Statement statement = other.createStatement()) {
+                    statement.executeUpdate("DELETE FROM ADDRESSES WHERE ID=" + stored.id());
+                }
+            }
+        }
+    }
+
+    record PersonSalary(long id, BigDecimal salary) {
+    }
+
+    interface PersonContact {
+        String getLastName();
+
+        String getEmail();
+    }
+
+    record PersonHome(Long id, Optional<Address> homeAddress) {
+    }
+
+    @Test
+    public void canFindProjections() {
+        Person person = newPeople(1).get(0);
+        person.setSalary(new BigDecimal("6100.00"));
+        person.setEmail("peter@mueller.ch");
+        person.setHomeAddress(new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST));
+        repo.save(person);
+
+        assertThat(repo.findAll(PersonSalary.class)).contains(new PersonSalary(person.getId(), new BigDecimal("6100.00")));
+        PersonContact contact = repo.findById(person.getId(), PersonContact.class).get();
+        assertThat(contact.getLastName()).isEqualTo(person.getLastName());
+        assertThat(contact.getEmail()).isEqualTo("peter@mueller.ch");
+        assertThat(repo.findById(person.getId(), PersonHome.class).get().homeAddress())
+                .contains(person.getHomeAddress().get());
+    }
+
+    @Test
+    public void canFindByCriteria() {
+        List<Person> people = newPeople(3);
+        people.forEach(p -> p.setLastName("Criteria"));
+        people.get(0).setSalary(new BigDecimal("1000.00"));
+        people.get(1).setSalary(new BigDecimal("2000.00"));
+        people.get(2).setSalary(new BigDecimal("3000.00"));
+        repo.saveAll(people);
+
+        for (int i = 0; i < 2; i++) {
+            try (Stream<Person> found = repo.find(where(LAST_NAME.eq("Criteria")).and(SALARY.between(new BigDecimal("1500"), new BigDecimal("3500"))))) {
+                assertThat(found).extracting(Person::getId).containsExactlyInAnyOrder(people.get(1).getId(), people.get(2).getId());
+            }
+        }
+        assertThat(repo.getFilterUsage()).containsEntry(Set.of("PEOPLE.LAST_NAME", "PEOPLE.SALARY"), 2L);
+    }
+
+    @Test
+    public void canAggregateSalariesInDatabaseAndInProcess() {
+        List<Person> people = newPeople(4);
+        people.get(0).setHomeAddress(new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.NORTH));
+        repo.saveAll(people);
+
+        assertSameStats(repo.salaryStatsByRegion(), repo.salaryStatsByRegion(PeopleRepository.Aggregation.IN_PROCESS));
+        assertSameStats(repo.salaryStatsByDecade(), repo.salaryStatsByDecade(PeopleRepository.Aggregation.IN_PROCESS));
+        assertThat(repo.salaryStatsByRegion()).extracting(SalaryStats::group).contains(Region.NORTH).containsNull();
+    }
+
+    private static <K> void assertSameStats(List<SalaryStats<K>> pushedDown, List<SalaryStats<K>> inProcess) {
+        assertThat(inProcess).hasSameSizeAs(pushedDown);
+        for (int i = 0; i < pushedDown.size(); i++) {
+            assertThat(inProcess.get(i))
+                    .usingRecursiveComparison()
+                    .withComparatorForType(BigDecimal::compareTo, BigDecimal.class)
+                    .withComparatorForType((a, b) -> Math.abs(a - b) < 0.01 ? 0 : Double.compare(a, b), Double.class)
+                    .isEqualTo(pushedDown.get(i));
+        }
+    }
+
+    @Test
+    public void canScanAndRefreshSnapshot() {
+        List<Person> people = newPeople(4);
+        people.get(0).setHomeAddress(new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.NORTH));
+        repo.saveAll(people);
+        PeopleSnapshot snapshot = repo.snapshot();
+
+        assertThat((long) snapshot.size()).isEqualTo(repo.count());
+        assertSameStats(repo.salaryStatsByRegion(), snapshot.salaryStatsByRegion(PeopleSnapshot.Filter.ALL));
+        assertSameStats(repo.salaryStatsByDecade(), snapshot.salaryStatsByDecade(PeopleSnapshot.Filter.ALL));
+        assertThat(snapshot.ids(PeopleSnapshot.Filter.ALL.inRegions(Region.NORTH))).contains(people.get(0).getId());
+
+        Person added = repo.save(newPeople(1).get(0));
+        PeopleSnapshot refreshed = repo.refresh(snapshot);
+        assertThat(refreshed.getLastId()).isEqualTo(added.getId());
+        assertThat(refreshed.size()).isEqualTo(snapshot.size() + 1);
+        assertThat(repo.refresh(refreshed)).isSameAs(refreshed);
+    }
+
+    @Test
+    public void canRouteReadsToReadSource() throws SQLException {
+        try (Connection replica = DriverManager.getConnection(URL)) {
+            PeopleRepository routedRepo = new PeopleRepository(ConnectionSource.of(connection), ConnectionSource.of(replica));
+            routedRepo.setCache(new LruEntityCache<>(100));
+            // the save is not committed, so only the primary connection sees it
+            Person savedPerson = routedRepo.save(newPeople(1).get(0));
+
+            assertThat(routedRepo.findById(savedPerson.getId())).isEmpty();
+            assertThat(routedRepo.readFromPrimary(() -> routedRepo.findById(savedPerson.getId()))).contains(savedPerson);
+
+            PeopleRepository replicaRepo = new PeopleRepository(replica);
+            Person replicatedPerson = replicaRepo.save(newPeople(1).get(0));
+            try {
+                assertThat(routedRepo.findById(replicatedPerson.getId())).contains(replicatedPerson);
+                // neither the uncommitted nor the replicated row may be cached
+                assertThat(routedRepo.getCache().stats().size()).isZero();
+            } finally {
+                replicaRepo.delete(replicatedPerson);
+            }
+        }
+    }
+
+    @Test
+    public void canWriteBehind() {
+        Person existing = repo.save(newPeople(1).get(0));
+        long startCount = repo.count();
+        try (WriteBehindRepository<Person> writeBehind = repo.writeBehind(100, Duration.ofHours(1), 1000)) {
+            List<Person> people = newPeople(3);
+            people.forEach(writeBehind::save);
+            writeBehind.delete(people.get(2));
+            existing.setSalary(new BigDecimal("100.00"));
+            writeBehind.update(existing);
+            existing.setSalary(new BigDecimal("200.00"));
+            writeBehind.update(existing);
+
+            assertThat(writeBehind.getPendingCount()).isEqualTo(3);
+            assertThat(repo.count()).isEqualTo(startCount);
+
+            writeBehind.flush();
+            assertThat(writeBehind.getPendingCount()).isZero();
+            assertThat(repo.count()).isEqualTo(startCount + 2);
+            assertThat(people.get(2).getId()).isNull();
+            assertThat(repo.findById(existing.getId()).get().getSalary()).isEqualByComparingTo("200.00");
+        }
+    }
+
+    @Test
+    public void canDropMutationsThatKeepFailing() {
+        long startCount = repo.count();
+        try (WriteBehindRepository<Person> writeBehind = repo.writeBehind(100, Duration.ofHours(1), 1000)) {
+            writeBehind.setMaxAttempts(2);
+            List<Person> people = newPeople(3);
+            Person poison = new Person("x".repeat(1000), "Poison", ZonedDateTime.of(1990, 1, 2, 3, 4, 5, 0, ZoneId.of("+0")));
+            people.add(1, poison);
+            people.forEach(writeBehind::save);
+
+            assertThatThrownBy(writeBehind::flush).isInstanceOf(DataException.class);
+            // the failed mutations are written one by one, so only the poison fails again
+            assertThatThrownBy(writeBehind::flush).isInstanceOf(DataException.class);
+
+            assertThat(writeBehind.getPendingCount()).isZero();
+            assertThat(writeBehind.takeDropped()).containsExactly(poison);
+            assertThat(repo.count()).isEqualTo(startCount + 3);
+        }
+    }
+
+    @Test
+    public void canExportPeopleAsCsvAndJsonLines() {
+        Person person = new Person("Jane", "Doe, Jr.", ZonedDateTime.of(1980, 11, 15, 15, 15, 0, 0, ZoneId.of("-6")));
+        person.setSalary(new BigDecimal("73000.00"));
+        Person savedPerson = repo.save(person);
+        TableExporter exporter = new TableExporter(connection);
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        ExportProgress progress = exporter.exportPeople(Channels.newChannel(csv), ExportFormat.CSV);
+        List<String> lines = csv.toString(StandardCharsets.UTF_8).lines().toList();
+        assertThat(lines.get(0)).isEqualTo("id,firstName,lastName,dob,salary,email,homeAddress");
+        assertThat(lines).contains(savedPerson.getId() + ",Jane,\"Doe, Jr.\",1980-11-15T21:15:00Z,73000.00,,");
+        assertThat(progress.rowsWritten()).isEqualTo(repo.count());
+        assertThat(progress.bytesWritten()).isEqualTo(csv.size());
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        exporter.exportPeople(Channels.newChannel(json), ExportFormat.JSON_LINES);
+        assertThat(json.toString(StandardCharsets.UTF_8).lines()).contains("{\"id\":" + savedPerson.getId() +
+                ",\"firstName\":\"Jane\",\"lastName\":\"Doe, Jr.\",\"dob\":\"1980-11-15T21:15:00Z\",\"salary\":73000.00," +
+                "\"email\":null,\"homeAddress\":null}");
+    }
+
+    @Test
+    public void canExportInTransaction() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(URL);
+        config.setMaximumPoolSize(2);
+        try (HikariDataSource dataSource = new HikariDataSource(config)) {
+            ConnectionSource source = ConnectionSource.of(dataSource);
+            PeopleRepository pooledRepo = new PeopleRepository(source);
+            TableExporter exporter = new TableExporter(source);
+            String lines = pooledRepo.inTransaction(() -> {
+                Person savedPerson = pooledRepo.save(new Person("Uncommitted", "Export", ZonedDateTime.now()));
+                ByteArrayOutputStream csv = new ByteArrayOutputStream();
+                exporter.exportPeople(Channels.newChannel(csv), ExportFormat.CSV);
+                pooledRepo.delete(savedPerson);
+                return csv.toString(StandardCharsets.UTF_8);
+            });
+            assertThat(lines).contains("Uncommitted,Export");
+        }
+    }
+
+    @Test
+    public void canSaveAllInBatches() {
+        repo.setBatchSize(2);
+        Address address = new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        List<Person> people = newPeople(5);
+        people.get(0).setHomeAddress(address);
+        people.get(1).setHomeAddress(address);
+
+        List<Person> savedPeople = repo.saveAll(people);
+        assertThat(savedPeople).extracting(Person::getId).doesNotContainNull().doesNotHaveDuplicates();
+        assertThat(address.id()).isGreaterThan(0);
+        assertThat(repo.findById(savedPeople.get(1).getId()).get().getHomeAddress().get().id()).isEqualTo(address.id());
+    }
+
+    @Test
+    public void canUpdateAndDeleteAllInBatches() {
+        List<Person> people = repo.saveAll(newPeople(3));
+        people.forEach(p -> p.setSalary(new BigDecimal("4200.00")));
+        repo.updateAll(people);
+        assertThat(repo.findById(people.get(2).getId()).get().getSalary()).isEqualByComparingTo("4200.00");
+
+        long startCount = repo.count();
+        repo.deleteAll(people);
+        assertThat(repo.count()).isEqualTo(startCount - 3);
+    }
+
+    @Test
+    public void canStreamAllWithBoundedHeap() {
+        int rows = 50_000;
+        repo.saveAll(newPeople(rows));
+        long expected = repo.count();
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long baseline = runtime.totalMemory() - runtime.freeMemory();
+        List<Person> buffered = repo.findAll();
+        System.gc();
+        long bufferedSize = runtime.totalMemory() - runtime.freeMemory() - baseline;
+        assertThat(buffered).hasSize((int) expected);
+        buffered = null;
+
+        System.gc();
+        baseline = runtime.totalMemory() - runtime.freeMemory();
+        long peak = 0;
+        long streamed = 0;
+        try (Stream<Person> people = repo.streamAll()) {
+            var iterator = people.iterator();
+            while (iterator.hasNext()) {
+                iterator.next();
+                if (++streamed % 10_000 == 0) {
+                    System.gc();
+                    peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory() - baseline);
+                }
+            }
+        }
+        assertThat(streamed).isEqualTo(expected);
+        // holding every row would take as much as the buffered list
+        assertThat(peak).isLessThan(bufferedSize / 4);
+    }
+
+    @Test
+    public void canFindAllByIdInInputOrder() {
+        List<Person> people = repo.saveAll(newPeople(3));
+        List<Optional<Person>> found = repo.findAllById(List.of(people.get(2).getId(), -1L, people.get(0).getId()));
+        assertThat(found).containsExactly(Optional.of(people.get(2)), Optional.empty(), Optional.of(people.get(0)));
+    }
+
+    @Test
+    public void canFindPages() {
+        List<Person> people = repo.saveAll(newPeople(5));
+        Page<Person> first = repo.findPage(people.get(0).getId() - 1, 2);
+        assertThat(first.items()).containsExactly(people.get(0), people.get(1));
+        assertThat(first.hasNext()).isTrue();
+
+        Page<Person> second = repo.findPage(first.nextAfterId(), 2);
+        assertThat(second.items()).containsExactly(people.get(2), people.get(3));
+
+        Page<Person> last = repo.findPage(people.get(4).getId(), 2);
+        assertThat(last.items()).isEmpty();
+        assertThat(last.hasNext()).isFalse();
+    }
+
+    @Test
+    public void canCacheFindById() throws SQLException {
+        // only committed rows are cached
+        connection.setAutoCommit(true);
+        repo.setCache(new LruEntityCache<>(100));
+        Person savedPerson = repo.save(new Person("Peter", "Mueller", ZonedDateTime.of(2001, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+        try {
+            Person p1 = repo.findById(savedPerson.getId()).get();
+            Person p2 = repo.findById(savedPerson.getId()).get();
+            assertThat(p2).isEqualTo(p1).isNotSameAs(p1);
+            assertThat(repo.getCache().stats().hits()).isEqualTo(1);
+            p2.setSalary(new BigDecimal("1.00"));
+            assertThat(repo.findById(savedPerson.getId()).get().getSalary()).isEqualByComparingTo(savedPerson.getSalary());
+
+            savedPerson.setSalary(new BigDecimal("7300.00"));
+            repo.update(savedPerson);
+            repo.inTransaction(() -> repo.findById(savedPerson.getId()));
+            assertThat(repo.getCache().stats().size()).isZero();
+            assertThat(repo.findById(savedPerson.getId()).get().getSalary()).isEqualByComparingTo("7300.00");
+        } finally {
+            repo.delete(savedPerson);
+        }
+        assertThat(repo.findById(savedPerson.getId())).isEmpty();
+    }
+
+    @Test
+    public void doesNotCacheRowsReplacedByOpenTransactions() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(URL);
+        config.setMaximumPoolSize(2);
+        try (HikariDataSource dataSource = new HikariDataSource(config)) {
+            PeopleRepository pooledRepo = new PeopleRepository(dataSource);
+            pooledRepo.setCache(new LruEntityCache<>(100));
+            Person person = new Person("Peter", "Mueller", ZonedDateTime.of(2001, 11, 25, 18, 55, 17, 0, ZoneId.of("+0")));
+            person.setSalary(new BigDecimal("1000.00"));
+            Person savedPerson = pooledRepo.save(person);
+            try {
+                pooledRepo.inTransaction(() -> {
+                    savedPerson.setSalary(new BigDecimal("7300.00"));
+                    pooledRepo.update(savedPerson);
+                    // another thread reads the committed row after the update invalidated the cache and caches it
+                    Optional<Person> concurrent = CompletableFuture.supplyAsync(() -> pooledRepo.findById(savedPerson.getId())).join();
+                    assertThat(concurrent.get().getSalary()).isEqualByComparingTo("1000.00");
+                    return null;
+                });
+                assertThat(pooledRepo.findById(savedPerson.getId()).get().getSalary()).isEqualByComparingTo("7300.00");
+            } finally {
+                pooledRepo.delete(savedPerson);
+            }
+        }
+    }
+
+    @Test
+    public void canCacheHomeAddressesLoadedWithPeople() throws SQLException {
+        connection.setAutoCommit(true);
+        repo.setAddressCache(new LruEntityCache<>(100));
+        Person personAddress = new Person("Peter", "Bmith", ZonedDateTime.of(1980, 11,15, 15, 15, 0, 0, ZoneId.of("-6")));
+        Address address = new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST);
+        personAddress.setHomeAddress(address);
+        Person savedPerson = repo.save(personAddress);
+        try {
+            repo.findById(savedPerson.getId());
+            assertThat(repo.getAddressRepository().findById(address.id())).contains(address);
+            assertThat(repo.getAddressRepository().getCache().stats().hits()).isEqualTo(1);
+        } finally {
+            repo.delete(savedPerson);
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("DELETE FROM ADDRESSES WHERE ID=" + address.id());
+            }
+        }
+    }
+
+    @Test
+    public void canRecordMetrics() {
+        RecordingMetricsListener metrics = new RecordingMetricsListener();
+        repo.setMetricsListener(metrics);
+        repo.saveAll(newPeople(3));
+        repo.findAll();
+        assertThat(metrics.stats("PeopleRepository", CrudOperation.SAVE).rows()).isEqualTo(3);
+        assertThat(metrics.stats("PeopleRepository", CrudOperation.FIND_ALL).calls()).isEqualTo(1);
+        assertThat(metrics.stats("PeopleRepository", CrudOperation.FIND_ALL).latency().count()).isEqualTo(1);
+        assertThat(metrics.stats("PeopleRepository", CrudOperation.COUNT).calls()).isZero();
+    }
+
+    @Test
+    public void rollsBackUncommittedWorkWhenReturningPooledConnections() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(URL);
+        config.setMaximumPoolSize(1);
+        config.setAutoCommit(false);
+        try (HikariDataSource dataSource = new HikariDataSource(config)) {
+            PeopleRepository pooledRepo = new PeopleRepository(dataSource);
+            long startCount = pooledRepo.count();
+            // the statements run on the pool's underlying connection, which the pool does not see as dirty
+            pooledRepo.save(new Person("Abandoned", "Person", ZonedDateTime.now()));
+            assertThat(pooledRepo.count()).isEqualTo(startCount);
+
+            Person committed = pooledRepo.inTransaction(() -> pooledRepo.save(new Person("Committed", "Person", ZonedDateTime.now())));
+            assertThat(pooledRepo.count()).isEqualTo(startCount + 1);
+            pooledRepo.inTransaction(() -> {
+                pooledRepo.delete(committed);
+                return null;
+            });
+        }
+    }
+
+    @Test
+    public void canShareRepositoryAcrossThreads() throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int lookupsPerThread = 500;
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(URL + "&cachePrepStmts=true&useServerPrepStmts=true");
+        config.setMaximumPoolSize(threads);
+        RecordingMetricsListener metrics = new RecordingMetricsListener();
+        try (HikariDataSource dataSource = new HikariDataSource(config)) {
+            PeopleRepository sharedRepo = new PeopleRepository(dataSource);
+            sharedRepo.setMetricsListener(metrics);
+            Person savedPerson = sharedRepo.save(new Person("Test", "Person", ZonedDateTime.of(2022, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Integer>> results = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    results.add(executor.submit(() -> {
+                        int found = 0;
+                        for (int i = 0; i < lookupsPerThread; i++) {
+                            if (sharedRepo.findById(savedPerson.getId()).filter(savedPerson::equals).isPresent()) {
+                                found++;
+                            }
+                        }
+                        return found;
+                    }));
+                }
+                for (Future<Integer> result : results) {
+                    assertThat(result.get()).isEqualTo(lookupsPerThread);
+                }
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+                sharedRepo.delete(savedPerson);
+            }
+        }
+        OperationStats lookups = metrics.stats("PeopleRepository", CrudOperation.FIND_BY_ID);
+        assertThat(lookups.calls()).isEqualTo((long) threads * lookupsPerThread);
+        assertThat(lookups.errors()).isZero();
+    }
+
+    @Test
+    public void canFanOutAsyncLookups() {
+        Person savedPerson = repo.save(new Person("Test", "Person", ZonedDateTime.of(2022, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+        try (AsyncCrudRepository<Person> asyncRepo = repo.async(4)) {
+            var person = asyncRepo.findById(savedPerson.getId());
+            var count = asyncRepo.count();
+            assertThat(person.join()).contains(savedPerson);
+            assertThat(count.join()).isGreaterThan(0);
+        }
+    }
+
+    @Test
+    public void canCapAsyncLookups() throws Exception {
+        // the listener runs inside each operation, so the listeners running at once are a lower bound of the operations
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        RecordingMetricsListener metrics = new RecordingMetricsListener();
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(URL);
+        // more connections than the cap, so the pool does not do the capping
+        config.setMaximumPoolSize(4);
+        try (HikariDataSource dataSource = new HikariDataSource(config)) {
+            PeopleRepository pooledRepo = new PeopleRepository(dataSource);
+            pooledRepo.setMetricsListener(metrics.andThen(m -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+            }));
+            List<CompletableFuture<Long>> counts = new ArrayList<>();
+            try (AsyncCrudRepository<Person> asyncRepo = pooledRepo.async(2)) {
+                for (int i = 0; i < 50; i++) {
+                    counts.add(asyncRepo.count());
+                }
+                // close waits for the submitted operations
+            }
+            assertThat(counts).allMatch(CompletableFuture::isDone);
+        }
+        assertThat(metrics.stats("PeopleRepository", CrudOperation.COUNT).calls()).isEqualTo(50);
+        assertThat(maxInFlight).hasValueBetween(1, 2);
+    }
+
+    @Test
+    public void canSaveAllAfterFailedSaveAll() {
+        long startCount = repo.count();
+        List<Person> failing = newPeople(2);
+        // fails while binding, after the first two rows were added to the batch
+        failing.add(new Person("No", "Dob", null));
+        assertThatThrownBy(() -> repo.saveAll(failing)).isInstanceOf(NullPointerException.class);
+        assertThat(repo.count()).isEqualTo(startCount);
+
+        Person person = repo.saveAll(newPeople(1)).get(0);
+        assertThat(repo.count()).isEqualTo(startCount + 1);
+        assertThat(repo.findById(person.getId())).hasValueSatisfying(found ->
+                assertThat(found.getFirstName()).isEqualTo("Test0"));
+        assertThat(failing).extracting(Person::getId).containsOnlyNulls();
+    }
+
+    @Test
+    public void canSaveAllWithOneOperationPerBatch() {
+        RecordingMetricsListener metrics = new RecordingMetricsListener();
+        repo.setMetricsListener(metrics);
+        repo.getAddressRepository().setMetricsListener(metrics);
+        repo.setBatchSize(100);
+        List<Person> people = newPeople(250);
+        people.forEach(p -> p.setHomeAddress(new Address(null, "123 TestStr", "Apt. 1a", "Bla Bla", "WA", "90210", "United States", "Fulton", Region.WEST)));
+
+        repo.saveAll(people);
+
+        // one operation for the people, and the addresses of each chunk are saved in a batch of their own first
+        assertThat(metrics.stats("PeopleRepository", CrudOperation.SAVE).calls()).isEqualTo(1);
+        assertThat(metrics.stats("PeopleRepository", CrudOperation.SAVE).rows()).isEqualTo(250);
+        assertThat(metrics.stats("AddressRepository", CrudOperation.SAVE).calls()).isEqualTo(3);
+        assertThat(people).extracting(Person::getId).doesNotContainNull().doesNotHaveDuplicates().isSorted();
+        assertThat(people).extracting(p -> p.getHomeAddress().get().id()).doesNotContainNull().doesNotHaveDuplicates();
+    }
+
+    private List<Person> newPeople(int count) {
+        List<Person> people = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            people.add(new Person("Test" + i, "Person", ZonedDateTime.of(2022, 11, 25, 18, 55, 17, 0, ZoneId.of("+0"))));
+        }
+        return people;
+    }
+
 //    @Test
 //    public void loadData() throws IOException, SQLException {
 //        Files.lines(Path.of("/Users/Dave/Downloads/Hr5m.csv"))
@@ -0,0 +1,102 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.Region;
+import ch.finecloud.peopledb.model.SalaryStats;
+import ch.finecloud.peopledb.repository.PeopleSnapshot.Filter;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class PeopleSnapshotTest {
+
+    private static PeopleSnapshot snapshot(int people) {
+        PeopleSnapshot.Builder builder = PeopleSnapshot.EMPTY.toBuilder();
+        for (int i = 1; i <= people; i++) {
+            builder.add(i, "First" + i % 10, "Last" + i % 7, LocalDateTime.of(1950 + i % 50, 1, 1, 12, 0),
+                    i % 5 == 0 ? null : BigDecimal.valueOf(1000 + i % 100), i % 3 == 0 ? null : Region.values()[i % 2]);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void scansInParallelLikeSequentially() {
+        // large enough to be split among several fork-join tasks
+        PeopleSnapshot snapshot = snapshot(300_000);
+        Filter filter = Filter.ALL.salaryBetween(new BigDecimal("1010"), new BigDecimal("1049.99")).inRegions(Region.WEST);
+
+        long expected = 0;
+        for (int i = 1; i <= 300_000; i++) {
+            if (i % 5 != 0 && i % 100 >= 10 && i % 100 < 50 && i % 3 != 0 && i % 2 == 0) {
+                expected++;
+            }
+        }
+        assertThat(snapshot.count(filter)).isEqualTo(expected);
+        assertThat(snapshot.ids(filter)).hasSize((int) expected).isSorted();
+        assertThat(snapshot.salaryStatsByRegion(filter)).extracting(SalaryStats::group, SalaryStats::count)
+                .containsExactly(tuple(Region.WEST, expected));
+    }
+
+    @Test
+    public void groupsByRegionAndDecadeWithNullsFirst() {
+        PeopleSnapshot snapshot = snapshot(30);
+        assertThat(snapshot.salaryStatsByRegion(Filter.ALL)).extracting(SalaryStats::group)
+                .containsExactly(null, Region.WEST, Region.NORTH);
+        assertThat(snapshot.salaryStatsByDecade(Filter.ALL)).extracting(SalaryStats::group)
+                .containsExactly(1950, 1960, 1970, 1980);
+        // people without a salary are counted as a group member but not in the statistics
+        assertThat(snapshot.salaryStatsByDecade(Filter.ALL).stream().mapToLong(SalaryStats::count).sum()).isEqualTo(24);
+    }
+
+    @Test
+    public void filtersByDobAndDictionaryEncodedNames() {
+        PeopleSnapshot snapshot = snapshot(30);
+        Filter bornInThe60s = Filter.ALL.bornBetween(ZonedDateTime.of(1960, 1, 1, 0, 0, 0, 0, ZoneId.of("+0")),
+                ZonedDateTime.of(1969, 12, 31, 23, 59, 59, 0, ZoneId.of("+0")));
+        assertThat(snapshot.ids(bornInThe60s)).containsExactly(10, 11, 12, 13, 14, 15, 16, 17, 18, 19);
+        assertThat(snapshot.ids(bornInThe60s.withFirstName("First3"))).containsExactly(13);
+        assertThat(snapshot.ids(Filter.ALL.withLastName("Last2"))).containsExactly(2, 9, 16, 23, 30);
+        assertThat(snapshot.count(Filter.ALL.withLastName("Nobody"))).isZero();
+        assertThatThrownBy(() -> Filter.ALL.withLastName("Last1").withLastName("Last2"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void appendsWithoutChangingThePreviousSnapshot() {
+        PeopleSnapshot snapshot = snapshot(10);
+        PeopleSnapshot.Builder builder = snapshot.toBuilder();
+        builder.add(11, "First1", "Other", null, BigDecimal.TEN, null);
+        PeopleSnapshot refreshed = builder.build();
+
+        assertThat(snapshot.size()).isEqualTo(10);
+        assertThat(snapshot.count(Filter.ALL.withLastName("Other"))).isZero();
+        assertThat(refreshed.size()).isEqualTo(11);
+        assertThat(refreshed.getLastId()).isEqualTo(11);
+        assertThat(refreshed.ids(Filter.ALL.withFirstName("First1"))).containsExactly(1, 11);
+        assertThat(refreshed.salaryStatsByDecade(Filter.ALL.withLastName("Other"))).extracting(SalaryStats::group)
+                .containsExactly((Integer) null);
+    }
+
+    @Test
+    public void insertsLateRowsInOrderAndSkipsLoadedOnes() {
+        PeopleSnapshot snapshot = snapshot(10);
+        PeopleSnapshot.Builder builder = snapshot.toBuilder();
+        assertThat(builder.add(12, "First2", "Other", null, BigDecimal.TEN, null)).isTrue();
+        // a refresh reads rows it holds already again
+        assertThat(builder.add(9, "First9", "Last2", null, BigDecimal.TEN, null)).isFalse();
+        // a row that committed after a higher ID was loaded
+        assertThat(builder.add(11, "First1", "Other", null, BigDecimal.ONE, Region.WEST)).isTrue();
+        PeopleSnapshot refreshed = builder.build();
+
+        assertThat(refreshed.size()).isEqualTo(12);
+        assertThat(refreshed.getLastId()).isEqualTo(12);
+        assertThat(refreshed.ids(Filter.ALL.withLastName("Other"))).containsExactly(11, 12);
+        assertThat(refreshed.ids(Filter.ALL.withLastName("Other").inRegions(Region.WEST))).containsExactly(11);
+    }
+}
@@ -0,0 +1,52 @@
+package ch.finecloud.peopledb.repository;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ProjectionTest {
+
+    private static final ProjectionTable TABLE = new ProjectionTable("P.ID", "PEOPLE AS P", "PEOPLE AS P JOIN ADDRESSES AS A", Map.of(
+            "id", ProjectedProperty.of("P.ID", Long.class, ResultSet::getLong),
+            "salary", ProjectedProperty.of("P.SALARY", BigDecimal.class, ResultSet::getBigDecimal),
+            "city", new ProjectedProperty("A.CITY", 1, String.class, true, ResultSet::getString)));
+
+    record Salary(long id, BigDecimal salary) {
+    }
+
+    interface City {
+        Optional<String> getCity();
+    }
+
+    record Name(String firstName) {
+    }
+
+    record WrongType(String salary) {
+    }
+
+    @Test
+    public void selectsOnlyRecordComponents() {
+        Projection<Salary> projection = Projection.of(Salary.class, TABLE);
+        assertThat(projection.findAllSql()).isEqualTo("SELECT P.ID, P.SALARY\nFROM PEOPLE AS P\n");
+        assertThat(projection.findByIdSql()).endsWith("\nWHERE P.ID=?");
+    }
+
+    @Test
+    public void joinsOnlyForJoinedProperties() {
+        assertThat(Projection.of(City.class, TABLE).findAllSql())
+                .isEqualTo("SELECT A.CITY\nFROM PEOPLE AS P JOIN ADDRESSES AS A\n");
+    }
+
+    @Test
+    public void rejectsUnknownPropertiesAndTypes() {
+        assertThatThrownBy(() -> Projection.of(Name.class, TABLE)).hasMessageContaining("firstName");
+        assertThatThrownBy(() -> Projection.of(WrongType.class, TABLE)).hasMessageContaining("BigDecimal");
+        assertThatThrownBy(() -> Projection.of(String.class, TABLE)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
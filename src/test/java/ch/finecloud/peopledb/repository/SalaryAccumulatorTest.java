@@ -0,0 +1,34 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.model.SalaryStats;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class SalaryAccumulatorTest {
+
+    @Test
+    public void computesStatsFromCents() {
+        SalaryAccumulator accumulator = new SalaryAccumulator();
+        accumulator.add(100_00);
+        accumulator.add(300_50);
+        SalaryStats<String> stats = accumulator.toStats("group");
+        assertThat(stats.count()).isEqualTo(2);
+        assertThat(stats.total()).isEqualTo(new BigDecimal("400.50"));
+        assertThat(stats.min()).isEqualTo(new BigDecimal("100.00"));
+        assertThat(stats.max()).isEqualTo(new BigDecimal("300.50"));
+        assertThat(stats.average()).isCloseTo(200.25, within(1e-9));
+        assertThat(stats.standardDeviation()).isCloseTo(100.25, within(1e-9));
+    }
+
+    @Test
+    public void leavesMinAndMaxOfEmptyGroupNull() {
+        SalaryStats<String> stats = new SalaryAccumulator().toStats(null);
+        assertThat(stats.count()).isZero();
+        assertThat(stats.min()).isNull();
+        assertThat(stats.max()).isNull();
+    }
+}
@@ -0,0 +1,46 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.annotation.SQL;
+import ch.finecloud.peopledb.model.CrudOperation;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class SqlRegistryTest {
+
+    @Test
+    public void readsSingleAndRepeatedSqlAnnotations() {
+        assertThat(SqlRegistry.of(PeopleRepository.class))
+                .containsEntry(CrudOperation.SAVE, PeopleRepository.SAVE_PERSON_SQL)
+                .containsEntry(CrudOperation.FIND_BY_ID, PeopleRepository.FIND_BY_ID_SQL)
+                .containsEntry(CrudOperation.DELETE_MANY, PeopleRepository.DELETE_IN_SQL);
+    }
+
+    @Test
+    public void generatesTheSqlOfTheAnnotations() {
+        for (Class<?> repositoryClass : List.of(PeopleRepository.class, AddressRepository.class)) {
+            assertThat(GeneratedSqlRegistry.of(repositoryClass.getName())).isEqualTo(SqlRegistry.readAnnotations(repositoryClass));
+        }
+    }
+
+    @Test
+    public void readsAnnotationsOfOtherClassesByReflection() {
+        assertThat(GeneratedSqlRegistry.of(CountingRepository.class.getName())).isNull();
+        assertThat(SqlRegistry.of(CountingRepository.class)).containsExactly(entry(CrudOperation.COUNT, "SELECT COUNT(*) FROM T"));
+    }
+
+    @Test
+    public void readsAnnotationsOncePerClass() {
+        assertThat(SqlRegistry.of(AddressRepository.class)).isSameAs(SqlRegistry.of(AddressRepository.class));
+    }
+
+    // test sources are compiled without the processor
+    static class CountingRepository {
+        @SQL(value = "SELECT COUNT(*) FROM T", operationType = CrudOperation.COUNT)
+        void count() {
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package ch.finecloud.peopledb.repository;
+
+import ch.finecloud.peopledb.repository.WriteBehindRepository.Kind;
+import ch.finecloud.peopledb.repository.WriteBehindRepository.Mutation;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WriteBehindRepositoryTest {
+
+    private static Mutation<String> mutation(Kind kind, String entity) {
+        return new Mutation<>(kind, entity);
+    }
+
+    @Test
+    public void updatesCollapseIntoTheLatest() {
+        assertThat(WriteBehindRepository.combine(mutation(Kind.UPDATE, "v1"), mutation(Kind.UPDATE, "v2")))
+                .isEqualTo(mutation(Kind.UPDATE, "v2"));
+    }
+
+    @Test
+    public void pendingSaveWritesTheLatestUpdate() {
+        assertThat(WriteBehindRepository.combine(mutation(Kind.SAVE, "v1"), mutation(Kind.UPDATE, "v2")))
+                .isEqualTo(mutation(Kind.SAVE, "v2"));
+    }
+
+    @Test
+    public void deleteWinsOverUpdates() {
+        assertThat(WriteBehindRepository.combine(mutation(Kind.UPDATE, "v1"), mutation(Kind.DELETE, "v1")))
+                .isEqualTo(mutation(Kind.DELETE, "v1"));
+        assertThat(WriteBehindRepository.combine(mutation(Kind.DELETE, "v1"), mutation(Kind.UPDATE, "v2")))
+                .isEqualTo(mutation(Kind.DELETE, "v2"));
+    }
+
+    @Test
+    public void deleteCancelsPendingSave() {
+        assertThat(WriteBehindRepository.combine(mutation(Kind.SAVE, "v1"), mutation(Kind.DELETE, "v1"))).isNull();
+    }
+
+    @Test
+    public void missingMutationKeepsTheOther() {
+        assertThat(WriteBehindRepository.combine(null, mutation(Kind.SAVE, "v1"))).isEqualTo(mutation(Kind.SAVE, "v1"));
+        assertThat(WriteBehindRepository.combine(mutation(Kind.UPDATE, "v1"), null)).isEqualTo(mutation(Kind.UPDATE, "v1"));
+    }
+}